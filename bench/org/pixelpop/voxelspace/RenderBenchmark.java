@@ -0,0 +1,596 @@
+package org.pixelpop.voxelspace;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DataBufferUShort;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.regex.Pattern;
+import java.util.stream.IntStream;
+
+import javax.imageio.ImageIO;
+
+/**
+ * RenderBenchmark measures the cost of the hot paths of the engine: updating a VoxelView with each ray marcher,
+ * quality preset and terrain layout, tracing single columns, generating a VoxelSpace and its mipmaps, loading one from
+ * images and mapping one from a terrain file. Every benchmark runs headless on a seeded terrain so that the numbers
+ * are comparable between runs and machines.
+ *
+ * Each benchmark is warmed up and then measured over a number of timed iterations. The score is the mean time of one
+ * operation and the error is the standard deviation between the iterations. The results can be written to a CSV file,
+ * and compared against a CSV file from an earlier run in which case the program exits with status 1 if any benchmark
+ * has become slower than the allowed tolerance.
+ *
+ * Next to the benchmarks there are checks that render the same frames in two ways that should give the same images,
+ * e.g. with two ray marchers. A check prints whether it passed, and the program exits with status 1 if any failed.
+ *
+ * Arguments:
+ * --quick             fewer and shorter iterations, useful for smoke testing
+ * --filter regex      only run the benchmarks whose name matches
+ * --csv file          write the results to the file
+ * --baseline file     compare the results against an earlier CSV file
+ * --tolerance factor  the allowed slowdown against the baseline, 0.1 by default
+ */
+public class RenderBenchmark {
+    /**
+     * A single benchmarked operation.
+     */
+    private interface Operation {
+        void run() throws Exception;
+    }
+
+    /**
+     * The outcome of one benchmark.
+     */
+    private static class Result {
+        final String name;
+        final double score;
+        final double error;
+        final String unit;
+
+        Result(String name, double score, double error, String unit) {
+            this.name = name;
+            this.score = score;
+            this.error = error;
+            this.unit = unit;
+        }
+    }
+
+    private static final long seed = 42;
+    private static final int[][] resolutions = {{640, 360}, {800, 450}, {1920, 1080}};
+    private static final int[] terrainSizes = {1024, 2048};
+
+    //The default tolerance of frame reuse, in columns sideways and in pixels up and down
+    private static final double reuseTolerance = .5;
+
+    private final Pattern filter;
+    private final int warmupIterations;
+    private final int measurementIterations;
+    private final long iterationTime;
+    private final List<Result> results = new ArrayList<>();
+    private final List<String> failedChecks = new ArrayList<>();
+
+    private RenderBenchmark(Pattern filter, boolean quick) {
+        this.filter = filter;
+        warmupIterations = quick ? 1 : 3;
+        measurementIterations = quick ? 3 : 5;
+        iterationTime = quick ? 200_000_000L : 1_000_000_000L;
+    }
+
+    /**
+     * Runs all benchmarks that match the filter.
+     */
+    private void run() throws Exception {
+        int processors = Runtime.getRuntime().availableProcessors();
+        int[] threadCounts = IntStream.of(1, processors / 2, processors).filter(threads -> threads > 0).distinct().toArray();
+
+        VoxelSpace voxelSpace = new VoxelSpace(1024, 1024, seed);
+
+        //The cost of a full frame for each resolution, thread count and camera path
+        for(int[] resolution : resolutions) {
+            for(int threads : threadCounts) {
+                for(String path : new String[]{"still", "flight", "spin"}) {
+                    String name = "update/" + resolution[0] + "x" + resolution[1] + "/" + threads + "t/" + path;
+                    if(!filter.matcher(name).find()) continue;
+
+                    RenderPool renderPool = new RenderPool(threads - 1);
+                    HeadlessRenderer renderer = new HeadlessRenderer(voxelSpace, resolution[0], resolution[1],
+                            renderPool, cameraPath(path));
+                    measure(name, 1e-6, "ms/frame", renderer::renderFrame);
+                    renderPool.shutdown();
+                }
+            }
+        }
+
+        //The cost of a full frame for each ray marcher and quality preset
+        for(RayMarcher rayMarcher : RayMarcher.values()) {
+            for(Quality quality : Quality.values()) {
+                String name = "quality/800x450/" + rayMarcher.name().toLowerCase(Locale.ROOT) + "/"
+                        + quality.name().toLowerCase(Locale.ROOT);
+                if(!filter.matcher(name).find()) continue;
+
+                HeadlessRenderer renderer = new HeadlessRenderer(voxelSpace, 800, 450, RenderPool.getDefault(),
+                        cameraPath("flight"));
+                renderer.getVoxelView().setRayMarcher(rayMarcher);
+                renderer.getVoxelView().setQuality(quality);
+                measure(name, 1e-6, "ms/frame", renderer::renderFrame);
+            }
+        }
+
+        //The batched ray marcher must render the same images as the fixed point ray marcher that it batches
+        for(Quality quality : Quality.values()) {
+            String name = "check/800x450/batched/" + quality.name().toLowerCase(Locale.ROOT);
+            if(!filter.matcher(name).find()) continue;
+
+            HeadlessRenderer expected = new HeadlessRenderer(voxelSpace, 800, 450, RenderPool.getDefault(),
+                    cameraPath("flight"));
+            expected.getVoxelView().setRayMarcher(RayMarcher.FIXED_POINT);
+            expected.getVoxelView().setQuality(quality);
+            HeadlessRenderer actual = new HeadlessRenderer(voxelSpace, 800, 450, RenderPool.getDefault(),
+                    cameraPath("flight"));
+            actual.getVoxelView().setRayMarcher(RayMarcher.BATCHED);
+            actual.getVoxelView().setQuality(quality);
+            check(name, expected, actual, null);
+        }
+
+        //The cost of a frame with frame reuse, for a view that stands still and one that turns
+        for(String path : new String[]{"still", "spin"}) {
+            String name = "reuse/800x450/" + path;
+            if(!filter.matcher(name).find()) continue;
+
+            HeadlessRenderer renderer = new HeadlessRenderer(voxelSpace, 800, 450, RenderPool.getDefault(),
+                    cameraPath(path));
+            renderer.getVoxelView().setRayMarcher(RayMarcher.FIXED_POINT);
+            renderer.getVoxelView().setFrameReuse(true);
+            measure(name, 1e-6, "ms/frame", renderer::renderFrame);
+        }
+
+        /* Frame reuse must render the same images as full frames for a view that stands still, one that stands still
+        while the terrain in front of it is edited, and one that turns when no tolerance is allowed. A view that turns
+        slowly at the default tolerance must copy most of its columns, each within the tolerance of its own ray */
+        VoxelSpace editedSpace = null;
+        for(Quality quality : new Quality[]{Quality.EXACT, Quality.ULTRA}) {
+            for(String path : new String[]{"still", "edit", "turn", "turn0"}) {
+                String name = "check/800x450/reuse/" + path + "/" + quality.name().toLowerCase(Locale.ROOT);
+                if(!filter.matcher(name).find()) continue;
+
+                //Edits go to a terrain of their own so that the benchmarks that follow render the same terrain
+                if(path.equals("edit") && editedSpace == null) editedSpace = new VoxelSpace(1024, 1024, seed);
+                VoxelSpace space = path.equals("edit") ? editedSpace : voxelSpace;
+                CameraPath cameraPath = path.equals("turn") ? CameraPath.spin(.001)
+                        : cameraPath(path.equals("turn0") ? "spin" : "still");
+
+                HeadlessRenderer expected = new HeadlessRenderer(space, 800, 450, RenderPool.getDefault(), cameraPath);
+                expected.getVoxelView().setRayMarcher(RayMarcher.FIXED_POINT);
+                expected.getVoxelView().setQuality(quality);
+                HeadlessRenderer actual = new HeadlessRenderer(space, 800, 450, RenderPool.getDefault(), cameraPath);
+                actual.getVoxelView().setRayMarcher(RayMarcher.FIXED_POINT);
+                actual.getVoxelView().setQuality(quality);
+                actual.getVoxelView().setFrameReuse(true);
+                actual.getVoxelView().setReuseTolerance(path.equals("turn0") ? 0 : reuseTolerance);
+
+                //Raises a hill and paints a tower a little further ahead of the camera each frame
+                SplittableRandom random = new SplittableRandom(seed);
+                Operation edit = () -> {
+                    Camera camera = expected.getVoxelView().getCamera();
+                    double distance = 50 + random.nextDouble() * 300;
+                    int x = (int)(camera.getPositionX() + Math.sin(camera.getRotation()) * distance);
+                    int y = (int)(camera.getPositionY() + Math.cos(camera.getRotation()) * distance);
+                    space.raise(x, y, 10, 40);
+                    space.setVoxel(x + 20, y, 0xFF0000, 250);
+                };
+                if(path.equals("turn")) {
+                    checkReuse(name, expected, actual, .5);
+                } else {
+                    check(name, expected, actual, path.equals("edit") ? edit : null);
+                }
+            }
+        }
+
+        //The cost of a full frame for each terrain layout, on a large map with a rotating view
+        VoxelSpace largeSpace = null;
+        for(String layout : new String[]{"linear", "tiled16", "tiled64", "morton"}) {
+            String name = "layout/800x450/" + layout + "/spin";
+            if(!filter.matcher(name).find()) continue;
+
+            if(largeSpace == null) largeSpace = new VoxelSpace(4096, 4096, seed);
+            largeSpace.setLayout(terrainLayout(layout, 4096));
+
+            HeadlessRenderer renderer = new HeadlessRenderer(largeSpace, 800, 450, RenderPool.getDefault(),
+                    cameraPath("spin"));
+            renderer.getVoxelView().setRayMarcher(RayMarcher.FIXED_POINT);
+            renderer.getVoxelView().setQuality(Quality.ULTRA);
+            measure(name, 1e-6, "ms/frame", renderer::renderFrame);
+        }
+
+        //The cost of a full frame with the terrain kept off the heap, against the same large map on the heap
+        String offHeapName = "storage/800x450/offheap/spin";
+        if(filter.matcher(offHeapName).find()) {
+            VoxelSpace offHeapSpace = TerrainGenerator.hills(seed).generate(4096, 4096, ForkJoinPool.commonPool(), true);
+            HeadlessRenderer renderer = new HeadlessRenderer(offHeapSpace, 800, 450, RenderPool.getDefault(),
+                    cameraPath("spin"));
+            renderer.getVoxelView().setRayMarcher(RayMarcher.FIXED_POINT);
+            renderer.getVoxelView().setQuality(Quality.ULTRA);
+            measure(offHeapName, 1e-6, "ms/frame", renderer::renderFrame);
+        }
+
+        //The cost of a full frame with the terrain compacted to a palette of 256 colors, against the same large map
+        String compactName = "storage/800x450/compact/spin";
+        if(filter.matcher(compactName).find()) {
+            VoxelSpace compactSpace = new VoxelSpace(4096, 4096, seed);
+            compactSpace.compact(true);
+            HeadlessRenderer renderer = new HeadlessRenderer(compactSpace, 800, 450, RenderPool.getDefault(),
+                    cameraPath("spin"));
+            renderer.getVoxelView().setRayMarcher(RayMarcher.FIXED_POINT);
+            renderer.getVoxelView().setQuality(Quality.ULTRA);
+            measure(compactName, 1e-6, "ms/frame", renderer::renderFrame);
+        }
+
+        //The cost of tracing a single column, measured on the calling thread only
+        for(int[] resolution : resolutions) {
+            for(String path : new String[]{"still", "spin"}) {
+                String name = "traceRay/" + resolution[0] + "x" + resolution[1] + "/" + path;
+                if(!filter.matcher(name).find()) continue;
+
+                RenderPool renderPool = new RenderPool(0);
+                HeadlessRenderer renderer = new HeadlessRenderer(voxelSpace, resolution[0], resolution[1],
+                        renderPool, cameraPath(path));
+                measure(name, 1.0 / resolution[0], "ns/column", renderer::renderFrame);
+                renderPool.shutdown();
+            }
+        }
+
+        //The cost of the ground queries of an entity simulation, per position or line
+        String groundName = "ground/heights";
+        String visibilityName = "ground/visibility";
+        if(filter.matcher(groundName).find() || filter.matcher(visibilityName).find()) {
+            int queries = 10000;
+            SplittableRandom random = new SplittableRandom(seed);
+            double[] points = new double[queries * 2];
+            double[] lines = new double[queries * 6];
+            for(int i = 0; i < points.length; i++) points[i] = random.nextDouble() * 1024;
+            for(int i = 0; i < lines.length; i++) lines[i] = random.nextDouble() * (i % 3 == 2 ? 200 : 1024);
+            double[] heights = new double[queries];
+            double[] normals = new double[queries * 3];
+            boolean[] visible = new boolean[queries];
+
+            if(filter.matcher(groundName).find()) {
+                measure(groundName, 1.0 / queries, "ns/point",
+                        () -> voxelSpace.getGroundHeights(points, heights, normals, 0, queries));
+            }
+            if(filter.matcher(visibilityName).find()) {
+                measure(visibilityName, 1.0 / queries, "ns/line",
+                        () -> voxelSpace.getVisibility(lines, visible, 0, queries));
+            }
+        }
+
+        //The cost of generating and loading terrain
+        for(int size : terrainSizes) {
+            String name = "generate/" + size + "x" + size;
+            if(filter.matcher(name).find()) {
+                measure(name, 1e-6, "ms/space", () -> new VoxelSpace(size, size, seed));
+            }
+
+            name = "load/" + size + "x" + size;
+            if(filter.matcher(name).find()) {
+                byte[][] images = encode(new VoxelSpace(size, size, seed));
+                measure(name, 1e-6, "ms/space",
+                        () -> new VoxelSpace(new ByteArrayInputStream(images[0]), new ByteArrayInputStream(images[1])));
+            }
+
+            name = "mipmaps/" + size + "x" + size;
+            if(filter.matcher(name).find()) {
+                VoxelSpace mipmapped = new VoxelSpace(size, size, seed);
+                measure(name, 1e-6, "ms/space", mipmapped::buildMipmaps);
+            }
+
+            name = "map/" + size + "x" + size;
+            if(filter.matcher(name).find()) {
+                Path file = Files.createTempFile("terrain", ".vxl");
+                TerrainFile.write(new VoxelSpace(size, size, seed), file);
+                measure(name, 1e-6, "ms/space", () -> TerrainFile.map(file));
+                Files.delete(file);
+            }
+        }
+    }
+
+    /**
+     * Warms up and measures a single benchmark.
+     * @param name the name of the benchmark
+     * @param scale the factor that converts nanoseconds per operation to the unit of the score
+     * @param unit the unit of the score
+     * @param operation the operation to measure
+     */
+    private void measure(String name, double scale, String unit, Operation operation) throws Exception {
+        for(int i = 0; i < warmupIterations; i++) {
+            iterate(operation);
+        }
+
+        double[] scores = new double[measurementIterations];
+        double mean = 0;
+        for(int i = 0; i < scores.length; i++) {
+            scores[i] = iterate(operation) * scale;
+            mean += scores[i] / scores.length;
+        }
+
+        double variance = 0;
+        for(double score : scores) variance += (score - mean) * (score - mean) / scores.length;
+
+        Result result = new Result(name, mean, Math.sqrt(variance), unit);
+        results.add(result);
+        System.out.printf(Locale.ROOT, "%-40s %12.3f +- %9.3f %s%n", result.name, result.score, result.error,
+                result.unit);
+    }
+
+    /**
+     * Renders the same frames with two renderers and checks that the images are equal, pixel for pixel.
+     * @param name the name of the check
+     * @param expected the renderer of the expected images
+     * @param actual the renderer that is checked
+     * @param edit run before each frame, e.g. to edit the terrain. May be null
+     */
+    private void check(String name, HeadlessRenderer expected, HeadlessRenderer actual, Operation edit)
+            throws Exception {
+        int frames = 10;
+        int failedFrames = 0;
+        int differingPixels = 0;
+        for(int frame = 0; frame < frames; frame++) {
+            if(edit != null) edit.run();
+            expected.renderFrame();
+            actual.renderFrame();
+
+            int[] expectedImage = expected.getVoxelView().getImage();
+            int[] actualImage = actual.getVoxelView().getImage();
+            int differing = 0;
+            for(int i = 0; i < expectedImage.length; i++) {
+                if(expectedImage[i] != actualImage[i]) differing++;
+            }
+            if(differing > 0) failedFrames++;
+            differingPixels += differing;
+        }
+
+        if(failedFrames == 0) {
+            System.out.printf(Locale.ROOT, "%-40s %12s%n", name, "passed");
+        } else {
+            System.out.printf(Locale.ROOT, "%-40s %12s %d pixels differ in %d of %d frames%n", name, "FAILED",
+                    differingPixels, failedFrames, frames);
+            failedChecks.add(name);
+        }
+    }
+
+    /**
+     * Renders the same turning frames with and without frame reuse and checks that every column of the reused frames
+     * is a column that the full renders traced, either the column itself or, where the column was copied, a column of
+     * an earlier frame whose ray is within the tolerance of its own: no further than the tolerance in columns to the
+     * side and with heights projected no further than the tolerance in pixels up or down. Also checks that at least
+     * the given share of the columns was copied.
+     * @param name the name of the check
+     * @param expected the renderer of the full frames
+     * @param actual the renderer with frame reuse, at the default tolerance
+     * @param copiedShare the least share of the columns after the first frame that must be copied
+     */
+    private void checkReuse(String name, HeadlessRenderer expected, HeadlessRenderer actual, double copiedShare)
+            throws Exception {
+        int frames = 10;
+        int width = expected.getRendering().getWidth();
+        int height = expected.getRendering().getHeight();
+
+        //The angle of each column relative to the camera and the unit step of its ray, as the view projects them
+        double fieldOfView = expected.getVoxelView().getCamera().getFieldOfView();
+        double[] columnAngles = new double[width];
+        double[] rayUnits = new double[width];
+        for(int column = 0; column < width; column++) {
+            double xAdjustment = (column - width / 2) * fieldOfView;
+            columnAngles[column] = Math.atan2(xAdjustment, VoxelView.focalLength);
+            rayUnits[column] = Math.sqrt(xAdjustment * xAdjustment + VoxelView.focalLength * VoxelView.focalLength);
+        }
+
+        int[][] images = new int[frames][];
+        double[] rotations = new double[frames];
+        int failedColumns = 0;
+        long copied = 0;
+        for(int frame = 0; frame < frames; frame++) {
+            rotations[frame] = expected.getVoxelView().getCamera().getRotation();
+            expected.renderFrame();
+            actual.renderFrame();
+            images[frame] = expected.getVoxelView().getImage().clone();
+            int[] image = actual.getVoxelView().getImage();
+            if(frame > 0) copied += width - actual.getVoxelView().getTracedColumns();
+
+            for(int column = 0; column < width; column++) {
+                double spacing = column + 1 < width ? columnAngles[column + 1] - columnAngles[column]
+                        : columnAngles[column] - columnAngles[column - 1];
+
+                //Look for the column from the newest frame back, among the columns whose rays are close enough
+                boolean found = false;
+                for(int source = frame; source >= 0 && !found; source--) {
+                    double angle = columnAngles[column]
+                            + Math.IEEEremainder(rotations[frame] - rotations[source], Math.PI * 2);
+                    int nearest = Arrays.binarySearch(columnAngles, angle);
+                    if(nearest < 0) nearest = -nearest - 1;
+                    for(int candidate = Math.max(nearest - 1, 0); candidate <= Math.min(nearest, width - 1) && !found;
+                        candidate++) {
+                        if(Math.abs(columnAngles[candidate] - angle) > reuseTolerance * spacing + 1e-9) continue;
+                        if(Math.abs(rayUnits[candidate] / rayUnits[column] - 1) * height / 2 > reuseTolerance + 1e-9)
+                            continue;
+                        found = equalColumns(image, column, images[source], candidate, width, height);
+                    }
+                }
+                if(!found) failedColumns++;
+            }
+        }
+
+        double share = (double)copied / (width * (frames - 1));
+        if(failedColumns == 0 && share >= copiedShare) {
+            System.out.printf(Locale.ROOT, "%-40s %12s %.0f%% of the columns copied%n", name, "passed", share * 100);
+        } else {
+            System.out.printf(Locale.ROOT, "%-40s %12s %d columns out of bounds, %.0f%% of the columns copied%n", name,
+                    "FAILED", failedColumns, share * 100);
+            failedChecks.add(name);
+        }
+    }
+
+    /**
+     * Returns whether a column of one image equals a column of another.
+     */
+    private static boolean equalColumns(int[] image, int column, int[] other, int otherColumn, int width, int height) {
+        for(int y = 0; y < height; y++) {
+            if(image[y * width + column] != other[y * width + otherColumn]) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Runs the operation repeatedly for the length of one iteration.
+     * @param operation the operation to run
+     * @return the mean time in nanoseconds of one operation
+     */
+    private double iterate(Operation operation) throws Exception {
+        long operations = 0;
+        long start = System.nanoTime();
+        long elapsed;
+        do {
+            operation.run();
+            operations++;
+        } while((elapsed = System.nanoTime() - start) < iterationTime);
+
+        return (double)elapsed / operations;
+    }
+
+    /**
+     * Writes the results to a CSV file.
+     * @param file the file to write
+     */
+    private void writeCsv(String file) throws IOException {
+        try(PrintStream out = new PrintStream(file, StandardCharsets.UTF_8.name())) {
+            out.println("benchmark,score,error,unit");
+            for(Result result : results) {
+                out.printf(Locale.ROOT, "%s,%f,%f,%s%n", result.name, result.score, result.error, result.unit);
+            }
+        }
+    }
+
+    /**
+     * Compares the results with the results of an earlier run.
+     * @param file the CSV file of the earlier run
+     * @param tolerance the allowed relative slowdown
+     * @return true if no benchmark is slower than allowed
+     */
+    private boolean compare(String file, double tolerance) throws IOException {
+        Map<String, Double> baseline = new HashMap<>();
+        for(String line : Files.readAllLines(Paths.get(file), StandardCharsets.UTF_8)) {
+            String[] columns = line.split(",");
+            if(columns.length < 2 || columns[0].equals("benchmark")) continue;
+            baseline.put(columns[0], Double.parseDouble(columns[1]));
+        }
+
+        boolean passed = true;
+        for(Result result : results) {
+            Double previous = baseline.get(result.name);
+            if(previous == null) continue;
+
+            double change = (result.score - previous) / previous;
+            if(change > tolerance) {
+                System.out.printf(Locale.ROOT, "REGRESSION %s: %.3f -> %.3f %s (%+.1f%%)%n", result.name, previous,
+                        result.score, result.unit, change * 100);
+                passed = false;
+            }
+        }
+        return passed;
+    }
+
+    /**
+     * Returns the camera path of the given name.
+     * @param name the name of the path
+     * @return the CameraPath
+     */
+    private static CameraPath cameraPath(String name) {
+        switch(name) {
+            case "flight": return CameraPath.flight(1, -.001);
+            case "spin": return CameraPath.spin(.01);
+            default: return CameraPath.still();
+        }
+    }
+
+    /**
+     * Returns the terrain layout of the given name.
+     * @param name the name of the layout
+     * @param size the width and height of the terrain
+     * @return the TerrainLayout
+     */
+    private static TerrainLayout terrainLayout(String name, int size) {
+        switch(name) {
+            case "tiled16": return TerrainLayout.tiled(size, size, 16);
+            case "tiled64": return TerrainLayout.tiled(size, size, 64);
+            case "morton": return TerrainLayout.morton(size, size);
+            default: return TerrainLayout.linear(size, size);
+        }
+    }
+
+    /**
+     * Encodes the color map and the height map of a VoxelSpace as PNG images.
+     * @param voxelSpace the VoxelSpace to encode
+     * @return the color map image and the height map image
+     */
+    private static byte[][] encode(VoxelSpace voxelSpace) throws IOException {
+        BufferedImage colorImage = new BufferedImage(voxelSpace.width, voxelSpace.height, BufferedImage.TYPE_INT_RGB);
+        int[] colors = ((DataBufferInt)colorImage.getRaster().getDataBuffer()).getData();
+        BufferedImage heightImage = new BufferedImage(voxelSpace.width, voxelSpace.height, BufferedImage.TYPE_USHORT_GRAY);
+        short[] heights = ((DataBufferUShort)heightImage.getRaster().getDataBuffer()).getData();
+
+        for(int y = 0; y < voxelSpace.height; y++) {
+            for(int x = 0; x < voxelSpace.width; x++) {
+                colors[x + y * voxelSpace.width] = voxelSpace.getVoxelColor(x, y);
+                heights[x + y * voxelSpace.width] = (short)voxelSpace.getVoxelHeight(x, y);
+            }
+        }
+
+        ByteArrayOutputStream colorOut = new ByteArrayOutputStream();
+        ImageIO.write(colorImage, "png", colorOut);
+        ByteArrayOutputStream heightOut = new ByteArrayOutputStream();
+        ImageIO.write(heightImage, "png", heightOut);
+
+        return new byte[][]{colorOut.toByteArray(), heightOut.toByteArray()};
+    }
+
+    public static void main(String[] args) throws Exception {
+        Pattern filter = Pattern.compile("");
+        boolean quick = false;
+        String csv = null;
+        String baseline = null;
+        double tolerance = .1;
+
+        for(int i = 0; i < args.length; i++) {
+            switch(args[i]) {
+                case "--quick": quick = true; break;
+                case "--filter": filter = Pattern.compile(args[++i]); break;
+                case "--csv": csv = args[++i]; break;
+                case "--baseline": baseline = args[++i]; break;
+                case "--tolerance": tolerance = Double.parseDouble(args[++i]); break;
+                default: throw new IllegalArgumentException("Unknown argument: " + args[i]);
+            }
+        }
+
+        RenderBenchmark benchmark = new RenderBenchmark(filter, quick);
+        benchmark.run();
+
+        if(csv != null) benchmark.writeCsv(csv);
+        boolean passed = benchmark.failedChecks.isEmpty();
+        if(baseline != null && !benchmark.compare(baseline, tolerance)) passed = false;
+        if(!passed) System.exit(1);
+    }
+}
@@ -0,0 +1,222 @@
+package org.pixelpop.voxelspace;
+
+/**
+ * AdaptiveQuality renders a VoxelView within a frame time budget. It measures the time of the recent frames and walks
+ * a ladder of levels, from full resolution at ULTRA quality down to half resolution at LOW quality, stepping down as
+ * soon as the frames run over the budget and back up once they have stayed well within it for a while. This gives a
+ * steady frame rate on machines and loads where a fixed quality would either drop frames or leave time unused.
+ *
+ * The levels below full resolution are rendered by views of their own and scaled up into the image of the output view
+ * with nearest neighbour sampling. The camera is taken from the output view every frame, so the output view is moved
+ * and rotated as usual. All views are created and their tables are built up front, so switching level doesn't allocate.
+ */
+public final class AdaptiveQuality {
+    //A step of the ladder: the scale of the resolution, the quality it's rendered at and the view that renders it
+    private static final class Level {
+        final double scale;
+        final Quality quality;
+        VoxelView view;
+
+        Level(double scale, Quality quality) {
+            this.scale = scale;
+            this.quality = quality;
+        }
+    }
+
+    //The number of frames whose mean is compared to the budget
+    private static final int window = 8;
+
+    //The number of frames in a row that must be within the headroom before the quality is raised
+    private static final int raiseFrames = 30;
+
+    //The share of the budget that the frames must stay within before the quality is raised
+    private static final double headroom = .6;
+
+    private final VoxelView outputView;
+    private final int outputWidth;
+    private final int outputHeight;
+
+    //From the best to the cheapest
+    private final Level[] levels = {
+            new Level(1, Quality.ULTRA),
+            new Level(1, Quality.HIGH),
+            new Level(1, Quality.MEDIUM),
+            new Level(.75, Quality.MEDIUM),
+            new Level(.75, Quality.LOW),
+            new Level(.5, Quality.LOW)
+    };
+
+    private long frameBudget;
+    private int level;
+
+    //The times of the last frames, the next one to replace and how many have been measured since the level changed
+    private final long[] frameTimes = new long[window];
+    private int nextFrame;
+    private int frames;
+    private int calmFrames;
+
+    /**
+     * Creates an AdaptiveQuality for the given view.
+     * @param outputView the view whose image the frames end up in
+     * @param voxelSpace the VoxelSpace that the output view renders
+     * @param renderPool the pool of threads that will trace the views of the lower resolutions
+     * @param frameBudget the time that a frame may take, in nanoseconds
+     */
+    public AdaptiveQuality(VoxelView outputView, VoxelSpace voxelSpace, RenderPool renderPool, long frameBudget) {
+        this.outputView = outputView;
+        this.frameBudget = frameBudget;
+
+        Camera camera = outputView.getCamera();
+        outputWidth = camera.getWidth();
+        outputHeight = camera.getHeight();
+
+        //Levels of the same scale share a view. Applying each quality once builds all tables that will be used
+        VoxelView scaledView = null;
+        for(Level step : levels) {
+            if(step.scale == 1) {
+                step.view = outputView;
+            } else {
+                if(scaledView == null || scaledView.getCamera().getWidth() != scaledWidth(step.scale)) {
+                    scaledView = new VoxelView(voxelSpace, scaledWidth(step.scale),
+                            (int)Math.round(outputHeight * step.scale), renderPool);
+                    scaledView.setProjectionScale(100 * (double)scaledView.getCamera().getHeight() / outputHeight);
+                    scaledView.setFieldOfView(camera.getFieldOfView() * outputWidth / scaledWidth(step.scale));
+                }
+                step.view = scaledView;
+            }
+            step.view.setQuality(step.quality);
+        }
+
+        //Start in the middle of the ladder and let the frame times decide from there
+        setLevel(levels.length / 2);
+    }
+
+    /**
+     * Renders a frame into the image of the output view and adjusts the level to the time it took.
+     * @throws InterruptedException
+     */
+    public void update() throws InterruptedException {
+        long start = System.nanoTime();
+
+        Level current = levels[level];
+        if(current.view == outputView) {
+            outputView.update();
+        } else {
+            //Follow the output view, keeping the field of view of the output across the lower resolution
+            Camera camera = outputView.getCamera();
+            Camera scaledCamera = current.view.getCamera();
+            current.view.setCamera(new Camera(camera.getPositionX(), camera.getPositionY(), camera.getPositionZ(),
+                    camera.getRotation(), camera.getFieldOfView() * outputWidth / scaledCamera.getWidth(),
+                    scaledCamera.getWidth(), scaledCamera.getHeight()));
+            current.view.update();
+            scaleUp(current.view.getImage(), scaledCamera.getWidth(), scaledCamera.getHeight());
+        }
+
+        adapt(System.nanoTime() - start);
+    }
+
+    /**
+     * Scales an image up into the image of the output view. Each row of the output is either sampled from the image or,
+     * when it samples the same row as the row above, copied from the row above.
+     */
+    private void scaleUp(int[] source, int sourceWidth, int sourceHeight) {
+        int[] image = outputView.getImage();
+        int lastRow = -1;
+        for(int y = 0; y < outputHeight; y++) {
+            int row = y * sourceHeight / outputHeight;
+            int offset = y * outputWidth;
+            if(row == lastRow) {
+                System.arraycopy(image, offset - outputWidth, image, offset, outputWidth);
+                continue;
+            }
+
+            int sourceOffset = row * sourceWidth;
+            for(int x = 0; x < outputWidth; x++) {
+                image[offset + x] = source[sourceOffset + x * sourceWidth / outputWidth];
+            }
+            lastRow = row;
+        }
+    }
+
+    /**
+     * Records the time of a frame and steps down the ladder when the recent frames are over the budget, or up when they
+     * have been well within it for long enough.
+     */
+    private void adapt(long frameTime) {
+        frameTimes[nextFrame] = frameTime;
+        nextFrame = (nextFrame + 1) % window;
+        calmFrames = frameTime < frameBudget * headroom ? calmFrames + 1 : 0;
+        if(++frames < window) return;
+
+        long total = 0;
+        for(long time : frameTimes) total += time;
+
+        if(total / window > frameBudget && level < levels.length - 1) setLevel(level + 1);
+        else if(calmFrames >= raiseFrames && level > 0) setLevel(level - 1);
+    }
+
+    /**
+     * Changes the level and starts measuring anew.
+     */
+    private void setLevel(int level) {
+        this.level = level;
+        levels[level].view.setQuality(levels[level].quality);
+        frames = 0;
+        calmFrames = 0;
+    }
+
+    /**
+     * Sets the time that a frame may take.
+     * @param frameBudget the time in nanoseconds
+     */
+    public void setFrameBudget(long frameBudget) {
+        this.frameBudget = frameBudget;
+    }
+
+    /**
+     * Sets the ray marcher of all views.
+     * @param rayMarcher the ray marcher
+     */
+    public void setRayMarcher(RayMarcher rayMarcher) {
+        for(Level step : levels) step.view.setRayMarcher(rayMarcher);
+    }
+
+    /**
+     * Sets whether the views should reuse what they can of their last frames, see VoxelView.setFrameReuse.
+     * @param frameReuse true if frames should be reused
+     */
+    public void setFrameReuse(boolean frameReuse) {
+        for(Level step : levels) step.view.setFrameReuse(frameReuse);
+    }
+
+    /**
+     * Sets the stats that the frames of all views are recorded into.
+     * @param renderStats the stats
+     */
+    public void setRenderStats(RenderStats renderStats) {
+        for(Level step : levels) step.view.setRenderStats(renderStats);
+    }
+
+    /**
+     * Returns the scale of the resolution that the frames are currently rendered at.
+     * @return the scale, 1 at full resolution
+     */
+    public double getScale() {
+        return levels[level].scale;
+    }
+
+    /**
+     * Returns the quality that the frames are currently rendered at.
+     * @return the quality
+     */
+    public Quality getQuality() {
+        return levels[level].quality;
+    }
+
+    /**
+     * Returns the width of a view of the given scale.
+     */
+    private int scaledWidth(double scale) {
+        return (int)Math.round(outputWidth * scale);
+    }
+}
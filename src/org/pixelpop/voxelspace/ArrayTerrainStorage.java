@@ -0,0 +1,57 @@
+package org.pixelpop.voxelspace;
+
+/**
+ * TerrainStorage on the heap. The voxels are kept in an int array and the ground plane, if there is one, in a byte
+ * array.
+ */
+final class ArrayTerrainStorage extends TerrainStorage {
+    //The largest number of voxels that is kept in arrays
+    static final int maxVoxels = 1 << 30;
+
+    final int[] voxels;
+    final byte[] ground;
+
+    /**
+     * @param voxels the packed voxels
+     * @param ground the ground height of each voxel, or null if the ground is the rendered height
+     */
+    ArrayTerrainStorage(int[] voxels, byte[] ground) {
+        this.voxels = voxels;
+        this.ground = ground;
+    }
+
+    @Override
+    int get(long index) {
+        return voxels[(int)index];
+    }
+
+    @Override
+    void set(long index, int voxel) {
+        voxels[(int)index] = voxel;
+    }
+
+    @Override
+    int getGround(long index) {
+        return ground != null ? ground[(int)index] & 0xFF : voxels[(int)index] >>> 24;
+    }
+
+    @Override
+    void setGround(long index, int ground) {
+        if(this.ground != null) this.ground[(int)index] = (byte)ground;
+    }
+
+    @Override
+    boolean hasGroundPlane() {
+        return ground != null;
+    }
+
+    @Override
+    boolean isReadOnly() {
+        return false;
+    }
+
+    @Override
+    TerrainStorage create(long voxels, boolean groundPlane) {
+        return allocate(voxels, groundPlane, false);
+    }
+}
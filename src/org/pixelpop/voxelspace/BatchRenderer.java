@@ -0,0 +1,160 @@
+package org.pixelpop.voxelspace;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * BatchRenderer renders many cameras of the same VoxelSpace at once, e.g. split screens, minimaps or thumbnails. The
+ * columns of all cameras are handed to the RenderPool as one frame, so the render threads share the work of the whole
+ * batch and a thread that is done with one camera goes on with the next, rather than every camera waiting for its own
+ * frame. Cameras of the same resolution, field of view and quality share their precalculated tables.
+ *
+ * The frames are rendered into images taken from a pool. An image belongs to the caller until it is handed back
+ * through release, after which it is reused for a later frame of the same resolution.
+ */
+public class BatchRenderer {
+    private final VoxelSpace voxelSpace;
+    private final RenderPool renderPool;
+
+    private Quality quality = Quality.EXACT;
+    private RayMarcher rayMarcher = RayMarcher.FLOATING_POINT;
+
+    //The views that render the cameras and the images that are free to be rendered into, by resolution
+    private final Map<Long, List<VoxelView>> views = new HashMap<>();
+    private final Map<Long, ArrayDeque<BufferedImage>> framebuffers = new HashMap<>();
+
+    //The views of the batch being rendered and the index of the first chunk of each of them
+    private VoxelView[] batchViews = new VoxelView[0];
+    private int[] firstChunks = new int[0];
+    private int batchSize;
+    private final RenderPool.ChunkTask renderer;
+
+    /**
+     * Creates a BatchRenderer for the given VoxelSpace.
+     * @param voxelSpace the VoxelSpace that should be rendered
+     * @param renderPool the pool of threads that will trace the cameras
+     */
+    public BatchRenderer(VoxelSpace voxelSpace, RenderPool renderPool) {
+        this.voxelSpace = voxelSpace;
+        this.renderPool = renderPool;
+
+        //Finds the view that a chunk of the batch belongs to and renders it
+        renderer = new RenderPool.ChunkTask() {
+            @Override
+            public void render(int chunk) {
+                int view = Arrays.binarySearch(firstChunks, 0, batchSize, chunk);
+                if(view < 0) view = -view - 2;
+                batchViews[view].getRenderer().render(chunk - firstChunks[view]);
+            }
+        };
+    }
+
+    /**
+     * Sets the quality that the cameras are rendered with.
+     * @param quality the quality preset
+     */
+    public synchronized void setQuality(Quality quality) {
+        this.quality = quality;
+        for(List<VoxelView> resolutionViews : views.values()) {
+            for(VoxelView view : resolutionViews) view.setQuality(quality);
+        }
+    }
+
+    /**
+     * Sets the ray marcher that the cameras are traced with.
+     * @param rayMarcher the ray marcher
+     */
+    public synchronized void setRayMarcher(RayMarcher rayMarcher) {
+        this.rayMarcher = rayMarcher;
+        for(List<VoxelView> resolutionViews : views.values()) {
+            for(VoxelView view : resolutionViews) view.setRayMarcher(rayMarcher);
+        }
+    }
+
+    /**
+     * Renders a frame of each camera. The call blocks until all of them have been rendered.
+     * @param cameras the cameras
+     * @return the frame of each camera, in the order of the cameras. The images should be released once they are no
+     * longer needed
+     * @throws InterruptedException if the calling thread was interrupted before the frames were started
+     */
+    public synchronized BufferedImage[] render(List<Camera> cameras) throws InterruptedException {
+        if(batchViews.length < cameras.size()) {
+            batchViews = new VoxelView[cameras.size()];
+            firstChunks = new int[cameras.size()];
+        }
+
+        //Give each camera a view of its resolution and an image to render into
+        Map<Long, Integer> usedViews = new HashMap<>();
+        BufferedImage[] frames = new BufferedImage[cameras.size()];
+        int chunks = 0;
+        for(int i = 0; i < cameras.size(); i++) {
+            Camera camera = cameras.get(i);
+            long resolution = resolution(camera.getWidth(), camera.getHeight());
+
+            int used = usedViews.getOrDefault(resolution, 0);
+            usedViews.put(resolution, used + 1);
+            List<VoxelView> resolutionViews = views.computeIfAbsent(resolution, key -> new ArrayList<>());
+            if(resolutionViews.size() == used) {
+                VoxelView view = new VoxelView(voxelSpace, camera.getWidth(), camera.getHeight(), renderPool);
+                view.setQuality(quality);
+                view.setRayMarcher(rayMarcher);
+                resolutionViews.add(view);
+            }
+
+            VoxelView view = resolutionViews.get(used);
+            frames[i] = acquire(camera.getWidth(), camera.getHeight());
+            view.setRenderTarget(frames[i]);
+            view.setCamera(camera);
+
+            batchViews[i] = view;
+            firstChunks[i] = chunks;
+            chunks += view.getNumberOfChunks();
+        }
+
+        //Render all cameras as one frame of the pool, with the terrain edits applied once for the batch
+        batchSize = cameras.size();
+        voxelSpace.applyEdits();
+        Lock frameLock = voxelSpace.frameLock.readLock();
+        frameLock.lock();
+        try {
+            for(int i = 0; i < cameras.size(); i++) batchViews[i].prepareFrame();
+            renderPool.execute(chunks, renderer);
+        } finally {
+            frameLock.unlock();
+            Arrays.fill(batchViews, null);
+        }
+        return frames;
+    }
+
+    /**
+     * Hands a frame back to the pool of images once it is no longer needed.
+     * @param frame the frame, as returned by render
+     */
+    public synchronized void release(BufferedImage frame) {
+        framebuffers.computeIfAbsent(resolution(frame.getWidth(), frame.getHeight()), key -> new ArrayDeque<>())
+                .push(frame);
+    }
+
+    /**
+     * Takes an image of the given resolution from the pool, or creates one if there are none.
+     */
+    private BufferedImage acquire(int width, int height) {
+        ArrayDeque<BufferedImage> free = framebuffers.get(resolution(width, height));
+        if(free != null && !free.isEmpty()) return free.pop();
+        return new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+    }
+
+    /**
+     * Returns a key for a resolution.
+     */
+    private static long resolution(int width, int height) {
+        return ((long)width << 32) | height;
+    }
+}
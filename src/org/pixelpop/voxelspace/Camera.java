@@ -0,0 +1,109 @@
+package org.pixelpop.voxelspace;
+
+/**
+ * Camera describes a viewpoint to render a VoxelSpace from: the position, the rotation around the Z axis, the field of
+ * view and the resolution of the rendering. A Camera is immutable, so it can be handed from the thread that moves it to
+ * the threads that render it without either seeing half of a change.
+ */
+public final class Camera {
+    private final double positionX;
+    private final double positionY;
+    private final double positionZ;
+    private final double rotation;
+    private final double fieldOfView;
+    private final int width;
+    private final int height;
+
+    /**
+     * Creates a camera with the default field of view of a VoxelView.
+     * @param positionX the x coordinate of the camera
+     * @param positionY the y coordinate of the camera
+     * @param positionZ the height of the camera
+     * @param rotation the rotation around the Z axis in radians
+     * @param width the width of the rendering
+     * @param height the height of the rendering
+     */
+    public Camera(double positionX, double positionY, double positionZ, double rotation, int width, int height) {
+        this(positionX, positionY, positionZ, rotation, 1.2, width, height);
+    }
+
+    /**
+     * Creates a camera.
+     * @param positionX the x coordinate of the camera
+     * @param positionY the y coordinate of the camera
+     * @param positionZ the height of the camera
+     * @param rotation the rotation around the Z axis in radians
+     * @param fieldOfView the field of view, see VoxelView.setFieldOfView
+     * @param width the width of the rendering
+     * @param height the height of the rendering
+     */
+    public Camera(double positionX, double positionY, double positionZ, double rotation, double fieldOfView, int width,
+                  int height) {
+        this.positionX = positionX;
+        this.positionY = positionY;
+        this.positionZ = positionZ;
+        this.rotation = rotation;
+        this.fieldOfView = fieldOfView;
+        this.width = width;
+        this.height = height;
+    }
+
+    /**
+     * Returns a camera at the given position, with the rotation, field of view and resolution of this camera.
+     * @param positionX the x coordinate of the camera
+     * @param positionY the y coordinate of the camera
+     * @param positionZ the height of the camera
+     * @return the moved camera
+     */
+    public Camera withPosition(double positionX, double positionY, double positionZ) {
+        return new Camera(positionX, positionY, positionZ, rotation, fieldOfView, width, height);
+    }
+
+    /**
+     * Returns a camera with the given rotation, at the position and with the field of view and resolution of this
+     * camera.
+     * @param rotation the rotation around the Z axis in radians
+     * @return the rotated camera
+     */
+    public Camera withRotation(double rotation) {
+        return new Camera(positionX, positionY, positionZ, rotation, fieldOfView, width, height);
+    }
+
+    /**
+     * Returns a camera with the given field of view, at the position and with the rotation and resolution of this
+     * camera.
+     * @param fieldOfView the field of view
+     * @return the changed camera
+     */
+    public Camera withFieldOfView(double fieldOfView) {
+        return new Camera(positionX, positionY, positionZ, rotation, fieldOfView, width, height);
+    }
+
+    public double getPositionX() {
+        return positionX;
+    }
+
+    public double getPositionY() {
+        return positionY;
+    }
+
+    public double getPositionZ() {
+        return positionZ;
+    }
+
+    public double getRotation() {
+        return rotation;
+    }
+
+    public double getFieldOfView() {
+        return fieldOfView;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+}
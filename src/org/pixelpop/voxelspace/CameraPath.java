@@ -0,0 +1,45 @@
+package org.pixelpop.voxelspace;
+
+/**
+ * A CameraPath moves a VoxelView between frames. It replaces user input when the engine is run without anybody
+ * steering it, e.g. when benchmarking, and makes such runs repeatable as the same path gives the same frames.
+ */
+public interface CameraPath {
+    /**
+     * Moves the view to where it should be for the next frame.
+     * @param voxelView the view to move
+     * @param frame the number of the frame that was just rendered, starting at 0
+     */
+    void advance(VoxelView voxelView, int frame);
+
+    /**
+     * Returns a path that leaves the camera where it is.
+     * @return a still camera path
+     */
+    static CameraPath still() {
+        return (voxelView, frame) -> {};
+    }
+
+    /**
+     * Returns a path that moves the camera forward and rotates it by a fixed amount every frame.
+     * @param move the distance moved each frame
+     * @param rotation the rotation in radians each frame
+     * @return a flight camera path
+     */
+    static CameraPath flight(double move, double rotation) {
+        return (voxelView, frame) -> {
+            voxelView.move(move);
+            voxelView.rotate(rotation);
+        };
+    }
+
+    /**
+     * Returns a path that turns the camera on the spot. This sweeps the view over terrain at every distance, which
+     * is the worst case for the cache.
+     * @param rotation the rotation in radians each frame
+     * @return a spinning camera path
+     */
+    static CameraPath spin(double rotation) {
+        return (voxelView, frame) -> voxelView.rotate(rotation);
+    }
+}
@@ -1,11 +1,12 @@
 package org.pixelpop.voxelspace;
 
+import javax.management.JMException;
 import javax.swing.*;
 import java.awt.*;
 import java.awt.event.MouseEvent;
 import java.awt.event.MouseMotionListener;
-import java.awt.image.BufferedImage;
 import java.io.IOException;
+import java.util.concurrent.TimeUnit;
 
 /**
  * The VoxelEngine is the entry point of program and is expected to bind the VoxelView to the VoxelSpace.
@@ -21,13 +22,32 @@ public class Engine {
     private final int width = 800;
     private final int height = 450;
 
+    //The time that we allow for each frame. 16 ms = 62.5 FPS
+    private static final long frameTime = 16;
+
     private final VoxelView voxelView;
     private final VoxelSpace voxelSpace;
 
-    private final BufferedImage rendering;
+    //Renders the view at the quality and resolution that keeps the frames within the frame time
+    private final AdaptiveQuality adaptiveQuality;
+
+    private final FrameBuffers frameBuffers;
     private final JFrame frame;
 
+    //The timings of the frames, available through JMX
+    private final RenderStats renderStats = new RenderStats();
+
+    /* Provides some movement and rotation. This is done to benchmark the application without random user input, on top
+    of which the mouse steers the view. The path is stepped by the simulation loop at the frame time, on a thread of its
+    own, and every frame is rendered from the camera that was published last */
+    private final CameraPath cameraPath = CameraPath.flight(1, -.001);
+    private final SimulationLoop simulationLoop;
+
     private Engine() throws IOException {
+        /* These are the images that we will paint the voxelView onto. A frame is rendered into one while the last
+        frame is painted from another */
+        frameBuffers = new FrameBuffers(width, height);
+
         //Creates a full screen, no fuzz, JFrame
         frame = new JFrame();
         frame.setExtendedState(JFrame.MAXIMIZED_BOTH);
@@ -36,13 +56,19 @@ public class Engine {
 
         /* Creates an anonymous implements of JPanel which will be the canvas where everything will be painted. The
         paintComponent method is overloaded to let the view to painted through a buffered image which is scaled to the
-        full screen display */
+        full screen display. The latest rendered frame is drawn scaled, straight from its buffer, so that painting
+        doesn't create a new image every time */
         int frameWidth = (int)frame.getSize().getWidth();
+        int frameHeight = frameWidth * height / width;
         JPanel canvas = new JPanel() {
             @Override
             protected void paintComponent(Graphics g) {
+                long start = System.nanoTime();
                 super.paintComponent(g);
-                g.drawImage(rendering.getScaledInstance(frameWidth, -1, Image.SCALE_FAST), 0, 0, null);
+                ((Graphics2D)g).setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+                        RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR);
+                g.drawImage(frameBuffers.present(), 0, 0, frameWidth, frameHeight, null);
+                renderStats.recordStage(RenderStats.Stage.PRESENT, System.nanoTime() - start);
             }
         };
 
@@ -79,12 +105,33 @@ public class Engine {
         frame.validate();
         frame.repaint();
 
-        //This is the image that we will paint the voxelView onto
-        rendering = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
-
         //These are the key components of the engine!
         voxelSpace = new VoxelSpace(1024, 1024);
         voxelView = new VoxelView(voxelSpace, width, height);
+        adaptiveQuality = new AdaptiveQuality(voxelView, voxelSpace, RenderPool.getDefault(),
+                TimeUnit.MILLISECONDS.toNanos(frameTime));
+
+        //The view renders straight into the pixels of the images
+        voxelView.setRenderTarget(frameBuffers.getBackBuffer());
+
+        /* Frames reuse what they can of the last frame, so a view that stands still or turns slowly, e.g. when nobody
+        is steering it, only traces what has changed */
+        adaptiveQuality.setFrameReuse(true);
+
+        /* The frame timings can be watched through JMX. Setting the system property voxelengine.statsInterval to a
+        number of seconds prints them at that interval as well. The engine runs just as well without them, so it goes on
+        with a warning if they can't be registered */
+        adaptiveQuality.setRenderStats(renderStats);
+        try {
+            renderStats.register("engine");
+        } catch(JMException e) {
+            System.err.println("Warning: the JMX stats are unavailable: " + e);
+        }
+        int statsInterval = Integer.getInteger("voxelengine.statsInterval", 0);
+        if(statsInterval > 0) renderStats.startLogging(statsInterval, TimeUnit.SECONDS);
+
+        simulationLoop = new SimulationLoop(TimeUnit.MILLISECONDS.toNanos(frameTime),
+                tick -> cameraPath.advance(voxelView, (int)tick));
     }
 
     /**
@@ -93,21 +140,18 @@ public class Engine {
     private void update() {
         //Update the VoxelView
         try {
-            voxelView.update();
+            adaptiveQuality.update();
         } catch (InterruptedException e) {
             //TODO: Improve error handling
             e.printStackTrace();
         }
 
-        //Render the updated VoxelView onto to the BufferedImage
-        rendering.getRaster().setDataElements(0, 0, width, height, voxelView.getImage());
+        /* The VoxelView has been rendered straight into the back buffer, so it only needs to be published and painted.
+        The next frame is rendered into another buffer while this one is painted */
+        long start = System.nanoTime();
+        voxelView.setRenderTarget(frameBuffers.publish());
+        renderStats.recordStage(RenderStats.Stage.COMPILE, System.nanoTime() - start);
         frame.repaint();
-
-        /* Provide some movement and rotation. This is done to benchmark the application without random user input.
-        This should however be placed elsewhere... */
-        //TODO: Put this in a separate method
-        voxelView.move(1);
-        voxelView.rotate(-.001);
     }
 
     /**
@@ -122,14 +166,13 @@ public class Engine {
     public static void main(String[] args) throws IOException, InterruptedException {
         //The number of frames that will be rendered before the program is exited
         int noFrames = 1000;
-        //The time that we allow for each frame. 16 ms = 62.5 FPS
-        long frameTime = 16;
 
         //We create the engine
         Engine engine = new Engine();
 
         //Start time to measure total FPS
         long origin = System.currentTimeMillis();
+        engine.simulationLoop.start();
 
         //A time stamp is used to make sure that
         long timestamp = System.currentTimeMillis();
@@ -143,10 +186,12 @@ public class Engine {
             timestamp += checkTime;
         }
 
-        //Display the FPS
+        //Display the FPS and the frame timings
         System.out.println((double)noFrames / ((System.currentTimeMillis() - origin) / 1000d));
+        System.out.println(engine.renderStats);
 
-        //Close the JFrame and exit
+        //Stop the simulation, close the JFrame and exit
+        engine.simulationLoop.stop();
         engine.frame.dispose();
 
     }
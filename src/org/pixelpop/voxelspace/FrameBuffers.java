@@ -0,0 +1,65 @@
+package org.pixelpop.voxelspace;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * FrameBuffers lets one thread render frames while another thread presents them, without either waiting for the other
+ * and without the presenter ever seeing a half rendered frame. There are three images: the back buffer that is being
+ * rendered, the ready buffer that holds the latest complete frame, and the front buffer that is being presented. When a
+ * frame is complete the renderer swaps the back buffer with the ready buffer, and before presenting the presenter swaps
+ * the front buffer with the ready buffer if it holds a newer frame. The swaps are single atomic exchanges, so the
+ * renderer may go on with the next frame while the previous one is presented.
+ */
+public final class FrameBuffers {
+    //The bit of the state that is set while the ready buffer holds a frame that hasn't been presented
+    private static final int FRESH = 4;
+
+    private final BufferedImage[] buffers = new BufferedImage[3];
+
+    //The index of the ready buffer and the FRESH bit
+    private final AtomicInteger state = new AtomicInteger(1);
+
+    //Only touched by the renderer and by the presenter respectively
+    private int back = 0;
+    private int front = 2;
+
+    /**
+     * Creates the three buffers.
+     * @param width the width of the frames
+     * @param height the height of the frames
+     */
+    public FrameBuffers(int width, int height) {
+        for(int i = 0; i < buffers.length; i++) {
+            buffers[i] = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        }
+    }
+
+    /**
+     * Returns the buffer that the renderer should render the next frame into.
+     * @return the back buffer
+     */
+    public BufferedImage getBackBuffer() {
+        return buffers[back];
+    }
+
+    /**
+     * Publishes the frame of the back buffer to the presenter, replacing any frame that hasn't been presented yet, and
+     * hands the renderer a new back buffer. Should only be called by the renderer.
+     * @return the new back buffer
+     */
+    public BufferedImage publish() {
+        back = state.getAndSet(back | FRESH) & ~FRESH;
+        return buffers[back];
+    }
+
+    /**
+     * Returns the latest published frame. The frame stays untouched by the renderer until the next call. Should only be
+     * called by the presenter.
+     * @return the front buffer
+     */
+    public BufferedImage present() {
+        if((state.get() & FRESH) != 0) front = state.getAndSet(front) & ~FRESH;
+        return buffers[front];
+    }
+}
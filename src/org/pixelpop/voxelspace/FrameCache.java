@@ -0,0 +1,304 @@
+package org.pixelpop.voxelspace;
+
+/**
+ * FrameCache keeps the last frame of a VoxelView so that the next frame can reuse what is still valid of it. Each column
+ * of a frame is the picture along one ray, so a column can be copied rather than traced as long as a ray of the last
+ * frame pointed the same way from the same position. When neither the camera, the settings nor the terrain has changed
+ * every column is copied. When the camera has only turned, each column is copied from the column of the last frame whose
+ * ray is nearest its own, if the two are within the tolerance, and only the columns turning into view are traced. When
+ * terrain has been edited, the columns whose rays pass over the edited tiles are traced. Any other change, e.g. a move
+ * of the camera, traces the whole frame.
+ *
+ * The cache remembers the direction and the unit step of the ray that each column was actually traced with, so the
+ * error of a column that is copied frame after frame never grows beyond the tolerance.
+ */
+final class FrameCache {
+    /**
+     * What a frame is rendered from, apart from the rotation of the camera and the terrain edits. Columns are only
+     * reused between frames of matching keys.
+     */
+    private static final class Key {
+        final Camera camera;
+        final ProjectionTables tables;
+        final RayMarcher rayMarcher;
+        final boolean mipmapping;
+        final TerrainStorage terrain;
+        final TerrainStorage[] mipmaps;
+
+        Key(Camera camera, ProjectionTables tables, RayMarcher rayMarcher, boolean mipmapping, TerrainStorage terrain,
+            TerrainStorage[] mipmaps) {
+            this.camera = camera;
+            this.tables = tables;
+            this.rayMarcher = rayMarcher;
+            this.mipmapping = mipmapping;
+            this.terrain = terrain;
+            this.mipmaps = mipmaps;
+        }
+
+        boolean matches(Key other) {
+            return camera.getPositionX() == other.camera.getPositionX()
+                    && camera.getPositionY() == other.camera.getPositionY()
+                    && camera.getPositionZ() == other.camera.getPositionZ()
+                    && tables == other.tables && rayMarcher == other.rayMarcher && mipmapping == other.mipmapping
+                    && terrain == other.terrain && mipmaps == other.mipmaps;
+        }
+    }
+
+    private final int width;
+    private final int height;
+
+    /* The last frame and, for each of its columns, the angle of the ray it was traced with relative to the direction of
+    the camera and the unit step of that ray */
+    private final int[] pixels;
+    private double[] angles;
+    private double[] units;
+
+    /* The plan of the next frame: for each column the column of the last frame that it's copied from, or -1 if it's
+    traced, and the ray that the column ends up with */
+    private final int[] sources;
+    private double[] nextAngles;
+    private double[] nextUnits;
+
+    //What the last frame and the next frame are rendered from. There is no last frame until the key is set
+    private Key key;
+    private Key nextKey;
+    private int version;
+    private int nextVersion;
+
+    //The version of each edit tile of the VoxelSpace when the last frame was rendered, row by row
+    private int[] tileVersions = new int[0];
+    private int[] nextTileVersions = new int[0];
+    private boolean tilesRead;
+
+    //The number of columns of the planned frame that are traced
+    private int traced;
+
+    /**
+     * @param width the width of the frames
+     * @param height the height of the frames
+     */
+    FrameCache(int width, int height) {
+        this.width = width;
+        this.height = height;
+        pixels = new int[width * height];
+        angles = new double[width];
+        units = new double[width];
+        sources = new int[width];
+        nextAngles = new double[width];
+        nextUnits = new double[width];
+    }
+
+    /**
+     * Plans the next frame: decides for each column whether it's copied from the last frame or traced. Must be called
+     * while the terrain can't be edited, i.e. with the frame lock held.
+     * @param voxelSpace the VoxelSpace that is rendered
+     * @param camera the camera of the frame
+     * @param tables the tables of the frame
+     * @param rayMarcher the ray marcher of the frame
+     * @param mipmapping whether the frame samples the mipmaps
+     * @param tolerance how far a copied column may be from its own ray, in pixels
+     * @return the number of columns that are traced
+     */
+    int plan(VoxelSpace voxelSpace, Camera camera, ProjectionTables tables, RayMarcher rayMarcher, boolean mipmapping,
+             double tolerance) {
+        nextKey = new Key(camera, tables, rayMarcher, mipmapping, voxelSpace.terrain, voxelSpace.mipmaps);
+        nextVersion = voxelSpace.getVersion();
+        tilesRead = key == null || nextVersion != version;
+        if(tilesRead) readTileVersions(voxelSpace);
+
+        double[] columnAngles = tables.columnAngles;
+        double[] rayUnits = tables.rayUnits;
+        if(key == null || !key.matches(nextKey)) {
+            for(int column = 0; column < width; column++) trace(column, tables);
+            traced = width;
+            return traced;
+        }
+
+        /* Walk the rays of the last frame alongside the columns, both are ordered by angle. The turn brings the angles of
+        the last frame to the direction of the new camera */
+        double turn = Math.IEEEremainder(key.camera.getRotation() - camera.getRotation(), Math.PI * 2);
+        traced = 0;
+        int source = 0;
+        for(int column = 0; column < width; column++) {
+            double angle = columnAngles[column];
+            while(source + 1 < width
+                    && Math.abs(angles[source + 1] + turn - angle) <= Math.abs(angles[source] + turn - angle)) source++;
+
+            //The tolerance is measured in columns sideways and in pixels up and down the column
+            double spacing = width == 1 ? 0 : column + 1 < width ? columnAngles[column + 1] - angle
+                    : angle - columnAngles[column - 1];
+            if(Math.abs(angles[source] + turn - angle) <= tolerance * spacing
+                    && Math.abs(units[source] / rayUnits[column] - 1) * height / 2 <= tolerance) {
+                sources[column] = source;
+                nextAngles[column] = angles[source] + turn;
+                nextUnits[column] = units[source];
+            } else {
+                trace(column, tables);
+                traced++;
+            }
+        }
+
+        if(nextVersion != version) traced += invalidate(voxelSpace, camera, tables, mipmapping);
+        return traced;
+    }
+
+    /**
+     * Reads the version of each edit tile of the VoxelSpace.
+     */
+    private void readTileVersions(VoxelSpace voxelSpace) {
+        int tileSize = voxelSpace.getEditTileSize();
+        int tilesX = (voxelSpace.width + tileSize - 1) / tileSize;
+        int tilesY = (voxelSpace.height + tileSize - 1) / tileSize;
+        if(nextTileVersions.length != tilesX * tilesY) nextTileVersions = new int[tilesX * tilesY];
+        for(int tileY = 0; tileY < tilesY; tileY++) {
+            for(int tileX = 0; tileX < tilesX; tileX++) {
+                nextTileVersions[tileY * tilesX + tileX] = voxelSpace.getTileVersion(tileX * tileSize, tileY * tileSize);
+            }
+        }
+    }
+
+    /**
+     * Traces the copied columns whose rays pass over a tile that has been edited since the last frame. A tile is seen
+     * by the columns within the angles of its corners, wherever it shows up within the reach of the rays as the
+     * terrain wraps around. The tile is widened by a voxel for the rounding of the ray positions and, with mipmapping,
+     * to the voxels of the highest mipmap level that it's part of.
+     * @return the number of columns that are traced
+     */
+    private int invalidate(VoxelSpace voxelSpace, Camera camera, ProjectionTables tables, boolean mipmapping) {
+        int tileSize = voxelSpace.getEditTileSize();
+        int tilesX = (voxelSpace.width + tileSize - 1) / tileSize;
+        int level = mipmapping ? voxelSpace.getMipLevels() : 0;
+        double reach = Math.max(tables.rayLengths[0], tables.rayLengths[width - 1]);
+        double positionX = camera.getPositionX();
+        double positionY = camera.getPositionY();
+
+        int traced = 0;
+        for(int tile = 0; tile < nextTileVersions.length; tile++) {
+            if(nextTileVersions[tile] == tileVersions[tile]) continue;
+
+            int left = (((tile % tilesX) * tileSize) >> level << level) - 1;
+            int top = (((tile / tilesX) * tileSize) >> level << level) - 1;
+            int right = ((((tile % tilesX + 1) * tileSize - 1) >> level) + 1 << level) + 1;
+            int bottom = ((((tile / tilesX + 1) * tileSize - 1) >> level) + 1 << level) + 1;
+
+            //Every copy of the tile within the reach of the rays
+            int fromX = (int)Math.ceil((positionX - reach - right) / voxelSpace.width);
+            int toX = (int)Math.floor((positionX + reach - left) / voxelSpace.width);
+            int fromY = (int)Math.ceil((positionY - reach - bottom) / voxelSpace.height);
+            int toY = (int)Math.floor((positionY + reach - top) / voxelSpace.height);
+            for(int copyY = fromY; copyY <= toY; copyY++) {
+                for(int copyX = fromX; copyX <= toX; copyX++) {
+                    traced += invalidate(left + copyX * voxelSpace.width, top + copyY * voxelSpace.height,
+                            right + copyX * voxelSpace.width, bottom + copyY * voxelSpace.height, camera, tables);
+                }
+            }
+        }
+        return traced;
+    }
+
+    /**
+     * Traces the copied columns whose rays pass over the given rectangle.
+     * @return the number of columns that are traced
+     */
+    private int invalidate(double left, double top, double right, double bottom, Camera camera,
+                           ProjectionTables tables) {
+        double positionX = camera.getPositionX();
+        double positionY = camera.getPositionY();
+        boolean inside = positionX >= left && positionX < right && positionY >= top && positionY < bottom;
+
+        /* The angles of the corners relative to the direction of the camera. The rectangle doesn't contain the camera,
+        so it spans less than half a turn and the corners are unwrapped around the first of them */
+        double first = Math.IEEEremainder(Math.atan2(left - positionX, top - positionY) - camera.getRotation(),
+                Math.PI * 2);
+        double low = first;
+        double high = first;
+        double[] cornersX = {right, left, right};
+        double[] cornersY = {top, bottom, bottom};
+        for(int corner = 0; corner < cornersX.length && !inside; corner++) {
+            double angle = Math.atan2(cornersX[corner] - positionX, cornersY[corner] - positionY) - camera.getRotation();
+            angle = first + Math.IEEEremainder(angle - first, Math.PI * 2);
+            low = Math.min(low, angle);
+            high = Math.max(high, angle);
+        }
+
+        int traced = 0;
+        for(int column = 0; column < width; column++) {
+            if(sources[column] < 0) continue;
+
+            double angle = nextAngles[column];
+            if(inside || (angle >= low && angle <= high) || (angle + Math.PI * 2 >= low && angle + Math.PI * 2 <= high)
+                    || (angle - Math.PI * 2 >= low && angle - Math.PI * 2 <= high)) {
+                trace(column, tables);
+                traced++;
+            }
+        }
+        return traced;
+    }
+
+    /**
+     * Marks a column to be traced with its own ray.
+     */
+    private void trace(int column, ProjectionTables tables) {
+        sources[column] = -1;
+        nextAngles[column] = tables.columnAngles[column];
+        nextUnits[column] = tables.rayUnits[column];
+    }
+
+    /**
+     * Returns whether a column of the planned frame is copied from the last frame.
+     * @param column the column
+     * @return true if the column is copied, false if it's traced
+     */
+    boolean isReused(int column) {
+        return sources[column] >= 0;
+    }
+
+    /**
+     * Fills the image of the planned frame with the copied columns and with the background where columns are traced.
+     * @param image the image of the frame
+     * @param clearImage the background image
+     */
+    void compose(int[] image, int[] clearImage) {
+        if(traced == width) {
+            System.arraycopy(clearImage, 0, image, 0, image.length);
+            return;
+        }
+        for(int y = 0; y < height; y++) {
+            int row = y * width;
+            for(int x = 0; x < width; x++) {
+                int source = sources[x];
+                image[row + x] = source < 0 ? clearImage[row + x] : pixels[row + source];
+            }
+        }
+    }
+
+    /**
+     * Keeps the rendered frame as the last frame.
+     * @param image the image of the frame
+     */
+    void store(int[] image) {
+        System.arraycopy(image, 0, pixels, 0, pixels.length);
+
+        double[] swap = angles;
+        angles = nextAngles;
+        nextAngles = swap;
+        swap = units;
+        units = nextUnits;
+        nextUnits = swap;
+
+        if(tilesRead) {
+            int[] tiles = tileVersions;
+            tileVersions = nextTileVersions;
+            nextTileVersions = tiles;
+        }
+        key = nextKey;
+        version = nextVersion;
+    }
+
+    /**
+     * Forgets the last frame, so that the next frame is traced in full.
+     */
+    void clear() {
+        key = null;
+    }
+}
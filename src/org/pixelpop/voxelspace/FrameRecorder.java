@@ -0,0 +1,230 @@
+package org.pixelpop.voxelspace;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import javax.imageio.ImageIO;
+
+/**
+ * FrameRecorder writes a sequence of rendered frames to disk without the renderer waiting for the disk. A recorded
+ * frame is copied into one of a fixed ring of buffers and written by background encoder threads while the renderer goes
+ * on with the next frame. The buffers are reused, so recording doesn't allocate per frame. When the encoders fall
+ * behind and every buffer is waiting to be written, record blocks until a buffer is free. This backpressure keeps the
+ * memory of a long recording bounded; the time the renderer has spent waiting is available through getStallTime.
+ *
+ * The frames are written either as raw 24 bit RGB, all frames after each other in one file, or as numbered PNG images.
+ * The raw format is cheap to write and can be read by e.g. ffmpeg with -f rawvideo -pix_fmt rgb24. The frames are
+ * written by several encoders at once, but always end up at the position or the file name of their frame number.
+ */
+public final class FrameRecorder implements Closeable {
+    /**
+     * The formats that the frames can be written in.
+     */
+    public enum Format {
+        //All frames as 24 bit RGB in the file frames.rgb
+        RAW,
+        //Each frame as a PNG image, frame000000.png, frame000001.png and so on
+        PNG
+    }
+
+    //A buffer of the ring, the pixels of a frame and the number of the frame they belong to
+    private static final class Frame {
+        final int[] pixels;
+        final BufferedImage image;
+        long number;
+
+        Frame(int width, int height) {
+            pixels = new int[width * height];
+            DirectColorModel colorModel = new DirectColorModel(24, 0xff0000, 0xff00, 0xff);
+            image = new BufferedImage(colorModel, Raster.createPackedRaster(new DataBufferInt(pixels, pixels.length),
+                    width, height, width, colorModel.getMasks(), null), false, null);
+        }
+    }
+
+    //Handed to the encoders to make them stop
+    private static final Frame END = new Frame(1, 1);
+
+    private final int width;
+    private final int height;
+    private final Format format;
+    private final File directory;
+    private final FileChannel channel;
+
+    //The buffers that are free to be recorded into and the frames that are waiting to be written
+    private final BlockingQueue<Frame> free;
+    private final BlockingQueue<Frame> pending;
+    private final Thread[] encoders;
+
+    private long frames;
+    private long stallTime;
+    private volatile Exception failure;
+    private boolean closed;
+
+    /**
+     * Creates a FrameRecorder and starts its encoders.
+     * @param directory the directory that the frames are written to
+     * @param width the width of the frames
+     * @param height the height of the frames
+     * @param format the format of the frames
+     * @param buffers the number of buffers of the ring, i.e. how many frames can wait to be written
+     * @param encoders the number of encoder threads
+     * @throws IOException if the directory or the raw file can't be created
+     */
+    public FrameRecorder(File directory, int width, int height, Format format, int buffers, int encoders)
+            throws IOException {
+        if(buffers < 1 || encoders < 1) throw new IllegalArgumentException("At least one buffer and encoder is needed");
+        if(!directory.isDirectory() && !directory.mkdirs()) throw new IOException("Can't create " + directory);
+
+        this.width = width;
+        this.height = height;
+        this.format = format;
+        this.directory = directory;
+        channel = format == Format.RAW ? FileChannel.open(new File(directory, "frames.rgb").toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING) : null;
+
+        free = new ArrayBlockingQueue<>(buffers);
+        pending = new ArrayBlockingQueue<>(buffers + encoders);
+        for(int i = 0; i < buffers; i++) free.add(new Frame(width, height));
+
+        this.encoders = new Thread[encoders];
+        for(int i = 0; i < encoders; i++) {
+            this.encoders[i] = new Thread(this::encode, "voxel-frame-encoder-" + i);
+            this.encoders[i].setDaemon(true);
+            this.encoders[i].start();
+        }
+    }
+
+    /**
+     * Records a frame. The pixels are copied, so the array can be rendered into again as soon as the call returns.
+     * Blocks while all buffers are waiting to be written.
+     * @param pixels an RGB image of the size of the recorder, stored row by row, e.g. VoxelView.getImage
+     * @throws IOException if an earlier frame couldn't be written
+     * @throws InterruptedException if the thread was interrupted while waiting for a buffer
+     */
+    public void record(int[] pixels) throws IOException, InterruptedException {
+        if(closed) throw new IllegalStateException("The recorder is closed");
+        if(pixels.length != width * height)
+            throw new IllegalArgumentException("The frame must be " + width + " x " + height + " pixels");
+        checkFailure();
+
+        Frame frame = free.poll();
+        if(frame == null) {
+            long start = System.nanoTime();
+            frame = free.take();
+            stallTime += System.nanoTime() - start;
+        }
+
+        System.arraycopy(pixels, 0, frame.pixels, 0, pixels.length);
+        frame.number = frames++;
+        pending.put(frame);
+    }
+
+    /**
+     * Returns the number of frames recorded so far.
+     * @return the number of frames
+     */
+    public long getFrameCount() {
+        return frames;
+    }
+
+    /**
+     * Returns how long record has waited for the encoders to free a buffer, in total.
+     * @return the time in nanoseconds
+     */
+    public long getStallTime() {
+        return stallTime;
+    }
+
+    /**
+     * Waits for all recorded frames to be written and stops the encoders.
+     * @throws IOException if a frame couldn't be written
+     */
+    @Override
+    public void close() throws IOException {
+        if(closed) return;
+        closed = true;
+
+        try {
+            for(Thread encoder : encoders) pending.put(END);
+            for(Thread encoder : encoders) encoder.join();
+        } catch(InterruptedException e) {
+            for(Thread encoder : encoders) encoder.interrupt();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the frames to be written");
+        } finally {
+            if(channel != null) channel.close();
+        }
+        checkFailure();
+    }
+
+    /**
+     * Rethrows the first failure of the encoders.
+     */
+    private void checkFailure() throws IOException {
+        Exception failure = this.failure;
+        if(failure != null) throw new IOException("A frame couldn't be written", failure);
+    }
+
+    /**
+     * The loop of an encoder thread. Writes pending frames and hands their buffers back until it's told to stop.
+     * After a failure, whether the frame couldn't be written or the writer threw, the frames are dropped, so that the
+     * renderer isn't blocked, until the failure is reported.
+     */
+    private void encode() {
+        //The raw frame of this encoder, converted to 24 bit RGB
+        ByteBuffer raw = format == Format.RAW ? ByteBuffer.allocateDirect(width * height * 3) : null;
+
+        try {
+            for(Frame frame = pending.take(); frame != END; frame = pending.take()) {
+                try {
+                    if(failure == null) {
+                        if(format == Format.RAW) writeRaw(frame, raw);
+                        else writePng(frame);
+                    }
+                } catch(IOException | RuntimeException e) {
+                    failure = e;
+                } finally {
+                    free.add(frame);
+                }
+            }
+        } catch(InterruptedException e) {
+            //Stopped by close
+        }
+    }
+
+    /**
+     * Writes a frame to its place in the raw file.
+     */
+    private void writeRaw(Frame frame, ByteBuffer raw) throws IOException {
+        raw.clear();
+        for(int pixel : frame.pixels) {
+            raw.put((byte)(pixel >> 16));
+            raw.put((byte)(pixel >> 8));
+            raw.put((byte)pixel);
+        }
+        raw.flip();
+
+        long position = frame.number * raw.capacity();
+        while(raw.hasRemaining()) position += channel.write(raw, position);
+    }
+
+    /**
+     * Writes a frame as a PNG image.
+     */
+    private void writePng(Frame frame) throws IOException {
+        File file = new File(directory, String.format(Locale.ROOT, "frame%06d.png", frame.number));
+        if(!ImageIO.write(frame.image, "png", file)) throw new IOException("No PNG writer available");
+    }
+}
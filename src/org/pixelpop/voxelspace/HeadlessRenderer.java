@@ -0,0 +1,164 @@
+package org.pixelpop.voxelspace;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Locale;
+
+import javax.imageio.ImageIO;
+
+/**
+ * HeadlessRenderer binds a VoxelView to a VoxelSpace without any Swing components. The view is rendered into an
+ * offscreen image as fast as possible, which makes it possible to run the engine on machines without a display and to
+ * measure the actual cost of rendering a frame.
+ */
+public class HeadlessRenderer {
+    private final VoxelView voxelView;
+    private final BufferedImage rendering;
+    private final CameraPath cameraPath;
+
+    //Records the frames when set
+    private FrameRecorder frameRecorder;
+
+    //The number of frames rendered so far
+    private int frame;
+
+    /**
+     * Creates a HeadlessRenderer which renders the given VoxelSpace on the given RenderPool.
+     * @param voxelSpace the VoxelSpace that should be rendered
+     * @param width the width of the rendering
+     * @param height the height of the rendering
+     * @param renderPool the pool of threads that will trace the view
+     * @param cameraPath the path that moves the camera between frames
+     */
+    public HeadlessRenderer(VoxelSpace voxelSpace, int width, int height, RenderPool renderPool, CameraPath cameraPath) {
+        this.cameraPath = cameraPath;
+
+        rendering = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        voxelView = new VoxelView(voxelSpace, width, height, renderPool);
+        voxelView.setRenderTarget(rendering);
+    }
+
+    /**
+     * Renders a single frame, records it if there is a FrameRecorder and moves the camera along the camera path.
+     * @return the time in nanoseconds it took to render the frame, not counting the recording
+     * @throws IOException if an earlier frame couldn't be recorded
+     * @throws InterruptedException
+     */
+    public long renderFrame() throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        voxelView.update();
+        long time = System.nanoTime() - start;
+
+        if(frameRecorder != null) frameRecorder.record(voxelView.getImage());
+        cameraPath.advance(voxelView, frame++);
+        return time;
+    }
+
+    /**
+     * Renders the given number of frames.
+     * @param frames the number of frames to render
+     * @return the time in nanoseconds it took to render each frame
+     * @throws IOException if a frame couldn't be recorded
+     * @throws InterruptedException
+     */
+    public long[] render(int frames) throws IOException, InterruptedException {
+        long[] frameTimes = new long[frames];
+        for(int i = 0; i < frames; i++) {
+            frameTimes[i] = renderFrame();
+        }
+        return frameTimes;
+    }
+
+    /**
+     * Sets the recorder that each rendered frame is handed to, or null to stop recording. The recorder is not closed by
+     * the HeadlessRenderer.
+     * @param frameRecorder the recorder
+     */
+    public void setFrameRecorder(FrameRecorder frameRecorder) {
+        this.frameRecorder = frameRecorder;
+    }
+
+    /**
+     * Returns the image that holds the last rendered frame.
+     * @return the rendering
+     */
+    public BufferedImage getRendering() {
+        return rendering;
+    }
+
+    /**
+     * Returns the view that is rendered.
+     * @return the VoxelView
+     */
+    public VoxelView getVoxelView() {
+        return voxelView;
+    }
+
+    /**
+     * Renders a generated terrain offscreen and presents the frame times to standard output. Setting the system
+     * property voxelengine.record to a directory records every frame into it, as fast as the frames can be rendered.
+     * The property voxelengine.recordFormat chooses between RAW (the default) and PNG frames.
+     *
+     * @param args optional arguments in the order: width, height, number of frames, terrain seed, number of threads
+     *             and a PNG file that the last frame is written to
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int width = args.length > 0 ? Integer.parseInt(args[0]) : 800;
+        int height = args.length > 1 ? Integer.parseInt(args[1]) : 450;
+        int noFrames = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+        long seed = args.length > 3 ? Long.parseLong(args[3]) : 0;
+        int threads = args.length > 4 ? Integer.parseInt(args[4]) : Runtime.getRuntime().availableProcessors();
+        if(noFrames < 1) {
+            System.err.println("Usage: HeadlessRenderer [width] [height] [frames, at least 1] [seed] [threads] [png file]");
+            System.exit(1);
+        }
+
+        RenderPool renderPool = new RenderPool(threads - 1);
+        HeadlessRenderer renderer = new HeadlessRenderer(new VoxelSpace(1024, 1024, seed), width, height, renderPool,
+                CameraPath.flight(1, -.001));
+        RenderStats renderStats = new RenderStats();
+        renderer.getVoxelView().setRenderStats(renderStats);
+
+        //The encoders share the processors with the render threads, so a few buffers are enough to even out the load
+        String recording = System.getProperty("voxelengine.record");
+        FrameRecorder frameRecorder = null;
+        if(recording != null) {
+            FrameRecorder.Format format = FrameRecorder.Format.valueOf(
+                    System.getProperty("voxelengine.recordFormat", "RAW").toUpperCase(Locale.ROOT));
+            frameRecorder = new FrameRecorder(new File(recording), width, height, format, 8,
+                    Math.max(1, threads / 2));
+            renderer.setFrameRecorder(frameRecorder);
+        }
+
+        long start = System.nanoTime();
+        long[] frameTimes;
+        try {
+            frameTimes = renderer.render(noFrames);
+        } finally {
+            if(frameRecorder != null) frameRecorder.close();
+            renderPool.shutdown();
+        }
+        if(frameRecorder != null) {
+            System.out.printf(Locale.ROOT, "recorded: %d frames in %.3f s, stalled: %.3f s%n",
+                    frameRecorder.getFrameCount(), (System.nanoTime() - start) / 1e9,
+                    frameRecorder.getStallTime() / 1e9);
+        }
+
+        //Present the frame times in milliseconds
+        Arrays.sort(frameTimes);
+        long total = 0;
+        for(long frameTime : frameTimes) total += frameTime;
+        System.out.printf(Locale.ROOT,
+                "frames: %d, fps: %.1f, mean: %.3f ms, p50: %.3f ms, p99: %.3f ms, max: %.3f ms%n",
+                noFrames, noFrames / (total / 1e9), total / 1e6 / noFrames,
+                frameTimes[noFrames / 2] / 1e6, frameTimes[(int)(noFrames * .99)] / 1e6,
+                frameTimes[noFrames - 1] / 1e6);
+        System.out.println(renderStats);
+
+        if(args.length > 5) ImageIO.write(renderer.getRendering(), "png", new File(args[5]));
+    }
+}
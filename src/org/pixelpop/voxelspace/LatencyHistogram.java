@@ -0,0 +1,108 @@
+package org.pixelpop.voxelspace;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * LatencyHistogram records durations in nanoseconds into a fixed set of logarithmic buckets, so recording never
+ * allocates and costs a few atomic additions. Each power of two is divided into 32 buckets, which puts the percentiles
+ * within about 3% of the recorded values. The maximum is kept exactly. The histogram may be recorded into from several
+ * threads and read while it is recorded into.
+ */
+final class LatencyHistogram {
+    //Each power of two is divided into 1 << subBucketBits buckets
+    private static final int subBucketBits = 5;
+    private static final int subBuckets = 1 << subBucketBits;
+
+    private final AtomicLongArray counts = new AtomicLongArray((64 - subBucketBits) * subBuckets);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Records a duration.
+     * @param nanos the duration in nanoseconds, negative durations are recorded as 0
+     */
+    void record(long nanos) {
+        long value = Math.max(nanos, 0);
+        counts.incrementAndGet(bucket(value));
+        count.incrementAndGet();
+        total.addAndGet(value);
+
+        long previous;
+        while(value > (previous = max.get()) && !max.compareAndSet(previous, value));
+    }
+
+    /**
+     * Returns the number of recorded durations.
+     * @return the count
+     */
+    long getCount() {
+        return count.get();
+    }
+
+    /**
+     * Returns the mean of the recorded durations.
+     * @return the mean in nanoseconds, 0 if nothing has been recorded
+     */
+    double getMean() {
+        long count = this.count.get();
+        return count > 0 ? (double)total.get() / count : 0;
+    }
+
+    /**
+     * Returns the longest recorded duration.
+     * @return the maximum in nanoseconds
+     */
+    long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Returns the duration that the given fraction of the recorded durations don't exceed. The duration is the middle
+     * of the bucket that holds the percentile, but never more than the maximum.
+     * @param fraction the percentile as a fraction, e.g. .99
+     * @return the percentile in nanoseconds, 0 if nothing has been recorded
+     */
+    long getPercentile(double fraction) {
+        long count = this.count.get();
+        if(count == 0) return 0;
+
+        long rank = Math.max(1, (long)Math.ceil(count * fraction));
+        long seen = 0;
+        for(int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if(seen >= rank) return Math.min((lowerBound(i) + lowerBound(i + 1)) / 2, max.get());
+        }
+        return max.get();
+    }
+
+    /**
+     * Clears the histogram. Durations recorded while the histogram is cleared may be partly lost.
+     */
+    void reset() {
+        for(int i = 0; i < counts.length(); i++) counts.set(i, 0);
+        count.set(0);
+        total.set(0);
+        max.set(0);
+    }
+
+    /**
+     * Returns the bucket of a value. Values below the number of sub buckets get a bucket each, the rest are bucketed by
+     * their highest bit and the bits right below it.
+     */
+    private static int bucket(long value) {
+        if(value < subBuckets) return (int)value;
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        return (exponent - subBucketBits + 1) * subBuckets + (int)((value >>> (exponent - subBucketBits)) & (subBuckets - 1));
+    }
+
+    /**
+     * Returns the lowest value of a bucket.
+     */
+    private static long lowerBound(int bucket) {
+        if(bucket < subBuckets) return bucket;
+        int exponent = bucket / subBuckets + subBucketBits - 1;
+        return (long)(subBuckets + bucket % subBuckets) << (exponent - subBucketBits);
+    }
+}
@@ -0,0 +1,130 @@
+package org.pixelpop.voxelspace;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * TerrainStorage off the heap, in direct buffers or in the memory mapped sections of a terrain file. The pages of a
+ * file are loaded by the operating system as they are touched and are shared through the page cache between processes
+ * mapping the same file. Neither kind of buffer is moved or scanned by the garbage collector, however large the
+ * terrain.
+ *
+ * A buffer can't hold more than 2^31 bytes, so the voxels and the ground plane are split into chunks of 2^chunkShift
+ * voxels each. A voxel is found by shifting its index for the chunk and masking it for the position within the chunk,
+ * which keeps sampling as cheap as for a single buffer.
+ */
+final class OffHeapTerrainStorage extends TerrainStorage {
+    //The number of voxels of each chunk is 1 << chunkShift, 1 GB of packed voxels
+    static final int chunkShift = 28;
+    private static final int chunkMask = (1 << chunkShift) - 1;
+
+    private final IntBuffer[] voxels;
+    private final ByteBuffer[] ground;
+
+    /**
+     * @param voxels the chunks of the packed voxels, all but the last of 1 << chunkShift voxels
+     * @param ground the chunks of the ground height of each voxel, or null if the ground is the rendered height
+     */
+    OffHeapTerrainStorage(IntBuffer[] voxels, ByteBuffer[] ground) {
+        this.voxels = voxels;
+        this.ground = ground;
+    }
+
+    /**
+     * Allocates a storage in direct buffers.
+     * @param voxels the number of voxels
+     * @param groundPlane whether the storage should have a ground plane of its own
+     * @return the storage
+     */
+    static OffHeapTerrainStorage allocate(long voxels, boolean groundPlane) {
+        int chunks = chunks(voxels);
+        IntBuffer[] voxelChunks = new IntBuffer[chunks];
+        ByteBuffer[] groundChunks = groundPlane ? new ByteBuffer[chunks] : null;
+        for(int chunk = 0; chunk < chunks; chunk++) {
+            int size = chunkSize(voxels, chunk);
+            voxelChunks[chunk] = ByteBuffer.allocateDirect(size * Integer.BYTES).order(ByteOrder.nativeOrder())
+                    .asIntBuffer();
+            if(groundPlane) groundChunks[chunk] = ByteBuffer.allocateDirect(size);
+        }
+        return new OffHeapTerrainStorage(voxelChunks, groundChunks);
+    }
+
+    /**
+     * Maps a storage from a file: the packed voxels, little endian, followed by the ground plane if there is one.
+     * @param channel the file
+     * @param mode the mode of the mapping
+     * @param position the position of the first voxel in the file
+     * @param voxels the number of voxels
+     * @param groundPlane whether the file holds a ground plane after the voxels
+     * @return the storage
+     * @throws IOException if the file can't be mapped
+     */
+    static OffHeapTerrainStorage map(FileChannel channel, FileChannel.MapMode mode, long position, long voxels,
+                                     boolean groundPlane) throws IOException {
+        int chunks = chunks(voxels);
+        IntBuffer[] voxelChunks = new IntBuffer[chunks];
+        ByteBuffer[] groundChunks = groundPlane ? new ByteBuffer[chunks] : null;
+        long groundPosition = position + voxels * Integer.BYTES;
+        for(int chunk = 0; chunk < chunks; chunk++) {
+            int size = chunkSize(voxels, chunk);
+            long offset = (long)chunk << chunkShift;
+            voxelChunks[chunk] = channel.map(mode, position + offset * Integer.BYTES, (long)size * Integer.BYTES)
+                    .order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+            if(groundPlane) groundChunks[chunk] = channel.map(mode, groundPosition + offset, size);
+        }
+        return new OffHeapTerrainStorage(voxelChunks, groundChunks);
+    }
+
+    /**
+     * Returns the number of chunks needed for the given number of voxels.
+     */
+    private static int chunks(long voxels) {
+        return (int)((voxels + chunkMask) >>> chunkShift);
+    }
+
+    /**
+     * Returns the number of voxels of a chunk, the last chunk holding what is left.
+     */
+    private static int chunkSize(long voxels, int chunk) {
+        return (int)Math.min(voxels - ((long)chunk << chunkShift), 1 << chunkShift);
+    }
+
+    @Override
+    int get(long index) {
+        return voxels[(int)(index >>> chunkShift)].get((int)index & chunkMask);
+    }
+
+    @Override
+    void set(long index, int voxel) {
+        voxels[(int)(index >>> chunkShift)].put((int)index & chunkMask, voxel);
+    }
+
+    @Override
+    int getGround(long index) {
+        return ground != null ? ground[(int)(index >>> chunkShift)].get((int)index & chunkMask) & 0xFF
+                : get(index) >>> 24;
+    }
+
+    @Override
+    void setGround(long index, int ground) {
+        if(this.ground != null) this.ground[(int)(index >>> chunkShift)].put((int)index & chunkMask, (byte)ground);
+    }
+
+    @Override
+    boolean hasGroundPlane() {
+        return ground != null;
+    }
+
+    @Override
+    boolean isReadOnly() {
+        return voxels[0].isReadOnly() || (ground != null && ground[0].isReadOnly());
+    }
+
+    @Override
+    TerrainStorage create(long voxels, boolean groundPlane) {
+        return allocate(voxels, groundPlane);
+    }
+}
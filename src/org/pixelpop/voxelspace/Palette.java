@@ -0,0 +1,125 @@
+package org.pixelpop.voxelspace;
+
+/**
+ * Palette holds the colors of a PaletteTerrainStorage, up to 65536 of them. A palette is fixed once it is created, so
+ * it can be read from any thread. Colors are looked up through an open addressed hash table. A color that isn't in the
+ * palette, e.g. the average color of a mipmap voxel or an edited color, is replaced by a nearby color of the palette,
+ * found through a grid of 32 x 32 x 32 RGB cells that is filled in with the palette color nearest each cell.
+ */
+final class Palette {
+    //The largest number of colors of a palette, as many as a 16 bit index can address
+    static final int maxColors = 1 << 16;
+
+    //The number of bits of each channel that a cell of the nearest color grid is addressed by
+    private static final int cellBits = 5;
+
+    private final int[] colors;
+
+    //The index + 1 of each color in the palette by its hash, 0 where the slot is empty
+    private final int[] slots;
+    private final int slotMask;
+
+    //The index of the palette color nearest each cell of the grid
+    private final short[] nearest;
+
+    /**
+     * @param colors the RGB colors of the palette, no more than maxColors and with no duplicates
+     */
+    Palette(int[] colors) {
+        if(colors.length == 0 || colors.length > maxColors)
+            throw new IllegalArgumentException("A palette holds between 1 and " + maxColors + " colors");
+        this.colors = colors.clone();
+
+        slots = new int[Integer.highestOneBit(colors.length) << 2];
+        slotMask = slots.length - 1;
+        for(int index = 0; index < colors.length; index++) {
+            int slot = hash(colors[index]) & slotMask;
+            while(slots[slot] != 0) slot = (slot + 1) & slotMask;
+            slots[slot] = index + 1;
+        }
+
+        /* The grid is filled in breadth first from the cells of the palette colors, so each cell gets the palette color
+        that is the fewest cell steps away from it */
+        int cells = 1 << (cellBits * 3);
+        nearest = new short[cells];
+        boolean[] filled = new boolean[cells];
+        int[] queue = new int[cells];
+        int tail = 0;
+        for(int index = 0; index < colors.length; index++) {
+            int cell = cell(colors[index]);
+            if(filled[cell]) continue;
+            filled[cell] = true;
+            nearest[cell] = (short)index;
+            queue[tail++] = cell;
+        }
+        int side = 1 << cellBits;
+        for(int head = 0; head < tail; head++) {
+            int cell = queue[head];
+            for(int shift = 0; shift < cellBits * 3; shift += cellBits) {
+                int channel = (cell >> shift) & (side - 1);
+                if(channel > 0) tail = fill(cell - (1 << shift), cell, filled, queue, tail);
+                if(channel < side - 1) tail = fill(cell + (1 << shift), cell, filled, queue, tail);
+            }
+        }
+    }
+
+    /**
+     * Gives an unfilled cell of the grid the nearest color of a neighbouring cell and queues it.
+     * @return the new tail of the queue
+     */
+    private int fill(int cell, int from, boolean[] filled, int[] queue, int tail) {
+        if(filled[cell]) return tail;
+        filled[cell] = true;
+        nearest[cell] = nearest[from];
+        queue[tail] = cell;
+        return tail + 1;
+    }
+
+    /**
+     * Returns the number of colors of the palette.
+     * @return the number of colors
+     */
+    int size() {
+        return colors.length;
+    }
+
+    /**
+     * Returns the color at the given index.
+     * @param index the index in the palette
+     * @return the RGB color
+     */
+    int color(int index) {
+        return colors[index];
+    }
+
+    /**
+     * Returns the index of the given color, or of a nearby color if the color isn't in the palette.
+     * @param color the RGB color
+     * @return the index in the palette
+     */
+    int indexOf(int color) {
+        color &= 0xFFFFFF;
+        for(int slot = hash(color) & slotMask; slots[slot] != 0; slot = (slot + 1) & slotMask) {
+            if(colors[slots[slot] - 1] == color) return slots[slot] - 1;
+        }
+        return nearest[cell(color)] & 0xFFFF;
+    }
+
+    /**
+     * Returns the cell of the grid that a color falls in.
+     */
+    private static int cell(int color) {
+        int shift = 8 - cellBits;
+        return (((color >> 16) & 0xFF) >> shift) << (cellBits * 2)
+                | (((color >> 8) & 0xFF) >> shift) << cellBits
+                | ((color & 0xFF) >> shift);
+    }
+
+    /**
+     * Spreads the bits of a color over the table.
+     */
+    private static int hash(int color) {
+        int hash = color * 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+}
@@ -0,0 +1,234 @@
+package org.pixelpop.voxelspace;
+
+/**
+ * TerrainStorage on the heap in a compact encoding: an 8 bit rendered height and an index into a Palette per voxel
+ * rather than a packed int. Terrain is painted with far fewer colors than an int can hold, so with up to 256 colors a
+ * voxel takes 2 bytes, the height and the index in one short, and with up to 65536 colors 3 bytes, the height in a byte
+ * and the index in a short. The ground plane takes another byte where the ground differs from the rendered height. This
+ * shrinks what a ray reads by a factor of two or more, so larger terrain stays in the caches while it is rendered.
+ *
+ * The voxels are read as packed ints like any other storage, the color looked up in the palette. Colors written to the
+ * storage that aren't in the palette, the averages of the mipmaps and edited colors, are replaced by nearby colors of the
+ * palette.
+ */
+final class PaletteTerrainStorage extends TerrainStorage {
+    //The largest number of colors that an 8 bit index can address
+    static final int narrowColors = 256;
+
+    private final Palette palette;
+
+    //With a narrow palette: the height in the upper and the index in the lower 8 bits of each voxel
+    private final short[] cells;
+
+    //With a wide palette: the height and the index of each voxel
+    private final byte[] heights;
+    private final short[] indices;
+
+    private final byte[] ground;
+
+    /**
+     * Creates an empty storage.
+     * @param palette the palette of the storage. Palettes of up to 256 colors are addressed by 8 bit indices
+     * @param voxels the number of voxels, no more than an array can hold
+     * @param groundPlane whether the storage should have a ground plane of its own
+     */
+    PaletteTerrainStorage(Palette palette, int voxels, boolean groundPlane) {
+        this.palette = palette;
+        boolean narrow = palette.size() <= narrowColors;
+        cells = narrow ? new short[voxels] : null;
+        heights = narrow ? null : new byte[voxels];
+        indices = narrow ? null : new short[voxels];
+        ground = groundPlane ? new byte[voxels] : null;
+    }
+
+    /**
+     * Creates a storage of a narrow palette on top of the given voxels.
+     */
+    private PaletteTerrainStorage(Palette palette, short[] cells, boolean groundPlane) {
+        this.palette = palette;
+        this.cells = cells;
+        heights = null;
+        indices = null;
+        ground = groundPlane ? new byte[cells.length] : null;
+    }
+
+    /**
+     * Converts a storage to the compact encoding. The palette is made of the colors of the terrain. Without quantizing,
+     * the colors are kept as they are and terrain of more than 65536 colors can't be converted. With quantizing, the
+     * colors are reduced to a narrow palette of 256 colors if there are more: the precision of the channels is lowered
+     * until no more than 256 distinct colors are left, and each of them is replaced by the average of the colors it
+     * stands for. The ground plane is left out if the ground is the rendered height everywhere.
+     * @param terrain the storage to convert
+     * @param voxels the number of voxels of the storage
+     * @param quantize whether the colors may be reduced to a palette of 256 colors
+     * @return the converted storage, or null if the terrain has too many voxels or colors
+     */
+    static PaletteTerrainStorage convert(TerrainStorage terrain, long voxels, boolean quantize) {
+        if(voxels > ArrayTerrainStorage.maxVoxels) return null;
+        int size = (int)voxels;
+
+        boolean groundPlane = false;
+        if(terrain.hasGroundPlane()) {
+            for(int index = 0; index < size && !groundPlane; index++) {
+                groundPlane = terrain.getGround(index) != terrain.get(index) >>> 24;
+            }
+        }
+
+        int[] colors = distinctColors(terrain, size, quantize ? narrowColors : Palette.maxColors);
+        PaletteTerrainStorage converted;
+        if(colors != null) {
+            converted = new PaletteTerrainStorage(new Palette(colors), size, groundPlane);
+            for(int index = 0; index < size; index++) converted.set(index, terrain.get(index));
+        } else if(quantize) {
+            converted = quantize(terrain, size, groundPlane);
+        } else {
+            return null;
+        }
+
+        if(groundPlane) {
+            for(int index = 0; index < size; index++) converted.setGround(index, terrain.getGround(index));
+        }
+        return converted;
+    }
+
+    /**
+     * Returns the distinct colors of a storage, or null if there are more than the given number.
+     */
+    private static int[] distinctColors(TerrainStorage terrain, int voxels, int maxColors) {
+        //An open addressed set of the colors found so far, marked by a bit above the color as black is a color too
+        int[] set = new int[Integer.highestOneBit(maxColors) << 2];
+        int mask = set.length - 1;
+        int[] colors = new int[maxColors];
+        int count = 0;
+        for(int index = 0; index < voxels; index++) {
+            int color = terrain.get(index) & 0xFFFFFF;
+            int slot = (color * 0x9E3779B9) >>> 8 & mask;
+            while(set[slot] != 0 && set[slot] != (color | 1 << 24)) slot = (slot + 1) & mask;
+            if(set[slot] != 0) continue;
+
+            if(count == maxColors) return null;
+            set[slot] = color | 1 << 24;
+            colors[count++] = color;
+        }
+
+        int[] distinct = new int[count];
+        System.arraycopy(colors, 0, distinct, 0, count);
+        return distinct;
+    }
+
+    /**
+     * Converts a storage to a narrow palette of averaged colors, see convert.
+     */
+    private static PaletteTerrainStorage quantize(TerrainStorage terrain, int voxels, boolean groundPlane) {
+        //Find the highest precision at which there are no more than a narrow palette of colors
+        int bits = 7;
+        for(; bits > 1; bits--) {
+            boolean[] used = new boolean[1 << (bits * 3)];
+            int count = 0;
+            for(int index = 0; index < voxels && count <= narrowColors; index++) {
+                int bucket = bucket(terrain.get(index), bits);
+                if(!used[bucket]) {
+                    used[bucket] = true;
+                    count++;
+                }
+            }
+            if(count <= narrowColors) break;
+        }
+
+        //Give each bucket an index and sum up the colors that fall in it
+        int[] bucketIndices = new int[1 << (bits * 3)];
+        long[] sums = new long[narrowColors * 3];
+        long[] counts = new long[narrowColors];
+        short[] cells = new short[voxels];
+        int size = 0;
+        for(int index = 0; index < voxels; index++) {
+            int color = terrain.get(index);
+            int bucket = bucket(color, bits);
+            if(bucketIndices[bucket] == 0) bucketIndices[bucket] = ++size;
+
+            int paletteIndex = bucketIndices[bucket] - 1;
+            sums[paletteIndex * 3] += (color >> 16) & 0xFF;
+            sums[paletteIndex * 3 + 1] += (color >> 8) & 0xFF;
+            sums[paletteIndex * 3 + 2] += color & 0xFF;
+            counts[paletteIndex]++;
+            cells[index] = (short)((color >>> 24) << 8 | paletteIndex);
+        }
+
+        /* The average of the colors of a bucket lies within the bucket, so the averages of different buckets never
+        end up as the same color */
+        int[] colors = new int[size];
+        for(int i = 0; i < size; i++) {
+            colors[i] = (int)(sums[i * 3] / counts[i]) << 16 | (int)(sums[i * 3 + 1] / counts[i]) << 8
+                    | (int)(sums[i * 3 + 2] / counts[i]);
+        }
+        return new PaletteTerrainStorage(new Palette(colors), cells, groundPlane);
+    }
+
+    /**
+     * Returns the bucket of a color at the given precision of each channel.
+     */
+    private static int bucket(int color, int bits) {
+        int shift = 8 - bits;
+        return (((color >> 16) & 0xFF) >> shift) << (bits * 2) | (((color >> 8) & 0xFF) >> shift) << bits
+                | ((color & 0xFF) >> shift);
+    }
+
+    @Override
+    int get(long index) {
+        if(cells != null) {
+            int cell = cells[(int)index];
+            return (cell & 0xFF00) << 16 | palette.color(cell & 0xFF);
+        }
+        return (heights[(int)index] & 0xFF) << 24 | palette.color(indices[(int)index] & 0xFFFF);
+    }
+
+    @Override
+    void set(long index, int voxel) {
+        int paletteIndex = palette.indexOf(voxel);
+        if(cells != null) {
+            cells[(int)index] = (short)((voxel >>> 24) << 8 | paletteIndex);
+        } else {
+            heights[(int)index] = (byte)(voxel >>> 24);
+            indices[(int)index] = (short)paletteIndex;
+        }
+    }
+
+    @Override
+    int getGround(long index) {
+        if(ground != null) return ground[(int)index] & 0xFF;
+        return cells != null ? (cells[(int)index] >> 8) & 0xFF : heights[(int)index] & 0xFF;
+    }
+
+    @Override
+    void setGround(long index, int ground) {
+        if(this.ground != null) this.ground[(int)index] = (byte)ground;
+    }
+
+    @Override
+    boolean hasGroundPlane() {
+        return ground != null;
+    }
+
+    @Override
+    boolean isReadOnly() {
+        return false;
+    }
+
+    /**
+     * Creates an empty storage with the same palette. A storage that would be too large for an array is created off
+     * the heap in the packed encoding.
+     */
+    @Override
+    TerrainStorage create(long voxels, boolean groundPlane) {
+        if(voxels > ArrayTerrainStorage.maxVoxels) return allocate(voxels, groundPlane, true);
+        return new PaletteTerrainStorage(palette, (int)voxels, groundPlane);
+    }
+
+    /**
+     * Returns the number of colors of the palette.
+     * @return the number of colors
+     */
+    int getPaletteSize() {
+        return palette.size();
+    }
+}
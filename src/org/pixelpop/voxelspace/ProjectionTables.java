@@ -0,0 +1,199 @@
+package org.pixelpop.voxelspace;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * ProjectionTables holds the values a VoxelView precalculates to take load from the view update: the direction,
+ * length and perspective of the ray of each column, the sample tables of the fixed point ray marchers and the
+ * background image. The tables only depend on the resolution, the projection and the level of detail, and never
+ * change once built, so views with the same settings share them. The tables of recently used settings are cached, which
+ * also makes switching back and forth between settings cheap.
+ */
+final class ProjectionTables {
+    //The number of sets of tables that are kept in the cache
+    private static final int cacheSize = 16;
+
+    //The longest ray whose sample distances fit in the 16.16 fixed point of the tables
+    static final int maxDistance = Integer.MAX_VALUE >> VoxelView.fixedShift;
+
+    private static final Map<List<Object>, ProjectionTables> cache =
+            new LinkedHashMap<List<Object>, ProjectionTables>(cacheSize, .75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<List<Object>, ProjectionTables> eldest) {
+                    return size() > cacheSize;
+                }
+            };
+
+    final int width;
+    final int height;
+    final double fieldOfView;
+    final double projectionScale;
+
+    //The offset of each column on the projection plane, the length of its unit step, 1 / its unit step and its ray length
+    final double[] xAdjustments;
+    final double[] rayUnits;
+    final double[] depthSteps;
+    final double[] rayLengths;
+
+    //The angle between the ray of each column and the direction of the view, in radians
+    final double[] columnAngles;
+
+    /* Precalculated values for the fixed point ray marchers. The sample tables hold the distance (16.16), the
+    perspective projection (16.16), the start of the shadow band and the mipmap level for each step of a ray, and are
+    shared by all columns. The column tables hold how many of the samples each column uses, its 1 / depthStep (16.16)
+    and its fog scale */
+    final int numberOfSamples;
+    final int[] sampleDistances;
+    final int[] sampleProjections;
+    final int[] sampleShadowDistances;
+    final byte[] sampleLevels;
+    final int[] sampleCounts;
+    final int[] columnScales;
+    final int[] columnFogScales;
+
+    //The background image, a sky, which the image is reset to before each frame
+    final int[] clearImage;
+
+    /**
+     * Builds the tables.
+     * @param width the width of the view
+     * @param height the height of the view
+     * @param fieldOfView the field of view
+     * @param projectionScale the vertical scale of the perspective projection
+     * @param viewDepth how far into the distance the view reaches
+     * @param lodDistance the distance from which the step size starts to grow
+     * @param stepGrowth how much the step size grows for each unit of distance beyond the lodDistance
+     * @throws IllegalArgumentException if the longest ray reaches maxDistance or further
+     */
+    private ProjectionTables(int width, int height, double fieldOfView, double projectionScale, int viewDepth,
+                             double lodDistance, double stepGrowth) {
+        this.width = width;
+        this.height = height;
+        this.fieldOfView = fieldOfView;
+        this.projectionScale = projectionScale;
+
+        xAdjustments = new double[width];
+        rayUnits = new double[width];
+        depthSteps = new double[width];
+        rayLengths = new double[width];
+        columnAngles = new double[width];
+        sampleCounts = new int[width];
+        columnScales = new int[width];
+        columnFogScales = new int[width];
+
+        /* Pre-calculating values for each raster column. The rays of the outer columns are longer as the view depth is
+        measured straight ahead */
+        double maxRayLength = 0;
+        for(int i = 0; i < width; i++) {
+            xAdjustments[i] = ((i - (width / 2)) * fieldOfView);
+            rayUnits[i] = Math.sqrt(xAdjustments[i] * xAdjustments[i] + VoxelView.focalLength * VoxelView.focalLength);
+            depthSteps[i] = VoxelView.focalLength / rayUnits[i];
+            columnScales[i] = (int)(VoxelView.fixedOne / depthSteps[i]);
+            rayLengths[i] = rayUnits[i] * (viewDepth / VoxelView.focalLength);
+            columnAngles[i] = Math.atan2(xAdjustments[i], VoxelView.focalLength);
+            columnFogScales[i] = (int)((ShadeTable.levels - 1) * VoxelView.fixedOne / rayLengths[i]);
+            maxRayLength = Math.max(maxRayLength, rayLengths[i]);
+        }
+        if(maxRayLength >= maxDistance)
+            throw new IllegalArgumentException("The rays of the view can't reach further than " + maxDistance
+                    + " units, the view depth or the field of view is too large");
+
+        /* Build the sample tables. The steps are the same as those taken by traceRay, out to the longest ray of the
+        view. Each column then only uses the samples that are within its own ray length. First count the steps of the
+        longest ray */
+        int samples = 0;
+        double stepSize = 1;
+        for(double distance = 1; distance < maxRayLength; distance += stepSize) {
+            samples++;
+            if(distance > lodDistance) stepSize = 1 + (distance - lodDistance) * stepGrowth;
+        }
+
+        numberOfSamples = samples;
+        sampleDistances = new int[samples];
+        sampleProjections = new int[samples];
+        sampleShadowDistances = new int[samples];
+        sampleLevels = new byte[samples];
+
+        //Take the same steps again and fill in the tables
+        int sample = 0;
+        stepSize = 1;
+        for(double distance = 1; distance < maxRayLength; distance += stepSize) {
+            sampleDistances[sample] = (int)(distance * VoxelView.fixedOne);
+            sampleProjections[sample] = (int)(projectionScale * VoxelView.fixedOne / distance);
+            sampleShadowDistances[sample] = (int)(distance - distance % VoxelView.shadowBand);
+            sampleLevels[sample] = (byte)mipLevel(stepSize, distance);
+            sample++;
+
+            if(distance > lodDistance) stepSize = 1 + (distance - lodDistance) * stepGrowth;
+        }
+
+        //Find the number of samples within the ray of each column
+        for(int i = 0; i < width; i++) {
+            int low = 0;
+            int high = numberOfSamples;
+            while(low < high) {
+                int middle = (low + high) >>> 1;
+                if(sampleDistances[middle] < rayLengths[i] * VoxelView.fixedOne) low = middle + 1;
+                else high = middle;
+            }
+            sampleCounts[i] = low;
+        }
+
+        //Setting the background image. In this case a sky is created in a "crude" way
+        clearImage = new int[width * height];
+        int horizonHeight = height / 2;
+        for(int j = 0; j < height; j++) {
+            int skyColor = (50 << 16) + (50 << 8) + 150;
+
+            if(j < horizonHeight * 1.5) {
+                int whiteFactor = 100 * (j * j) / (horizonHeight * horizonHeight);
+                int whiteAddition = (whiteFactor << 16) + (whiteFactor << 8);
+                skyColor += whiteAddition;
+            }
+
+            Arrays.fill(clearImage, j * width, (j + 1) * width, skyColor);
+        }
+    }
+
+    /**
+     * Returns the tables of the given settings, from the cache if they have been built recently.
+     * @param width the width of the view
+     * @param height the height of the view
+     * @param fieldOfView the field of view
+     * @param projectionScale the vertical scale of the perspective projection
+     * @param viewDepth how far into the distance the view reaches
+     * @param lodDistance the distance from which the step size starts to grow
+     * @param stepGrowth how much the step size grows for each unit of distance beyond the lodDistance
+     * @return the tables
+     * @throws IllegalArgumentException if the longest ray reaches maxDistance or further
+     */
+    static ProjectionTables get(int width, int height, double fieldOfView, double projectionScale, int viewDepth,
+                                double lodDistance, double stepGrowth) {
+        List<Object> key = Arrays.<Object>asList(width, height, fieldOfView, projectionScale, viewDepth, lodDistance,
+                stepGrowth);
+        synchronized(cache) {
+            ProjectionTables tables = cache.get(key);
+            if(tables == null) {
+                tables = new ProjectionTables(width, height, fieldOfView, projectionScale, viewDepth, lodDistance,
+                        stepGrowth);
+                cache.put(key, tables);
+            }
+            return tables;
+        }
+    }
+
+    /**
+     * Returns the mipmap level that matches the footprint of a sample. The footprint is the larger of the distance to
+     * the next sample along the ray and the distance to the sample of the neighbouring column.
+     * @param stepSize the distance between the samples along the ray
+     * @param distance the distance of the sample from the view
+     * @return the mipmap level, not limited to the levels of the VoxelSpace
+     */
+    int mipLevel(double stepSize, double distance) {
+        int footprint = (int)Math.max(stepSize, distance * fieldOfView / VoxelView.focalLength);
+        return footprint < 2 ? 0 : 31 - Integer.numberOfLeadingZeros(footprint);
+    }
+}
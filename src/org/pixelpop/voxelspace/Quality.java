@@ -0,0 +1,35 @@
+package org.pixelpop.voxelspace;
+
+/**
+ * Quality presets for a VoxelView. Each preset sets how far into the distance the view reaches and how the ray
+ * marching trades detail for speed in the distance. Up to the level of detail distance a ray is stepped one unit at a
+ * time, beyond it the step size grows linearly with the distance travelled. Distant terrain covers few pixels on screen
+ * so the longer steps are hard to notice, while they allow a much longer view depth for the same cost. All presets but
+ * EXACT sample distant terrain from the mipmaps of the VoxelSpace, which keeps the longer steps from shimmering.
+ */
+public enum Quality {
+    //One unit steps all the way out to the classic view depth of 400
+    EXACT(400, Double.POSITIVE_INFINITY, 0, false),
+    LOW(400, 100, .02, true),
+    MEDIUM(800, 150, .01, true),
+    HIGH(1500, 200, .006, true),
+    ULTRA(2500, 300, .004, true);
+
+    final int viewDepth;
+    final double lodDistance;
+    final double stepGrowth;
+    final boolean mipmapping;
+
+    /**
+     * @param viewDepth how far into the distance the view reaches
+     * @param lodDistance the distance from which the step size starts to grow
+     * @param stepGrowth how much the step size grows for each unit of distance beyond the lodDistance
+     * @param mipmapping whether distant terrain is sampled from the mipmaps
+     */
+    Quality(int viewDepth, double lodDistance, double stepGrowth, boolean mipmapping) {
+        this.viewDepth = viewDepth;
+        this.lodDistance = lodDistance;
+        this.stepGrowth = stepGrowth;
+        this.mipmapping = mipmapping;
+    }
+}
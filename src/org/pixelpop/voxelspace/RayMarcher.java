@@ -0,0 +1,25 @@
+package org.pixelpop.voxelspace;
+
+/**
+ * The ray marchers a VoxelView can trace its columns with.
+ */
+public enum RayMarcher {
+    /**
+     * Steps the rays in double precision and darkens each voxel by a floating point fog factor. This is the reference
+     * implementation.
+     */
+    FLOATING_POINT,
+
+    /**
+     * Steps the rays in 16.16 fixed point from a precalculated table of sample distances and projections, and shades
+     * the voxels through a ShadeTable. The color of a voxel is only shaded when the voxel is visible.
+     */
+    FIXED_POINT,
+
+    /**
+     * Steps batches of neighbouring columns together in the same fixed point arithmetic as FIXED_POINT, one sample of
+     * each column at a time, with the same result. The sample tables are read once per batch and the columns of a batch
+     * read neighbouring terrain at the same time. Columns that are done are masked out of the batch.
+     */
+    BATCHED
+}
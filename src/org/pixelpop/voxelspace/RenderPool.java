@@ -0,0 +1,211 @@
+package org.pixelpop.voxelspace;
+
+import java.util.concurrent.Phaser;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * RenderPool is a long lived set of render threads that is handed one frame of work at a time. A frame is described as
+ * a number of chunks (typically a handful of neighbouring raster columns) and the pool makes sure that every chunk is
+ * rendered exactly once before {@link #execute(int, ChunkTask)} returns.
+ *
+ * The chunks of a frame are divided into one contiguous segment per participant (the worker threads and the calling
+ * thread). A participant starts with its own segment and, when that is drained, steals the remaining chunks of the other
+ * segments. Rays that hit close terrain finish much sooner than rays looking out over open water, so this keeps every
+ * core busy until the frame is done rather than leaving it idle behind a fixed partition.
+ *
+ * The frame handoff is done through a Phaser: one phase to release the workers and one phase to collect them. The
+ * threads themselves are created once and are reused for the lifetime of the pool.
+ *
+ * The pool keeps count of how long each participant has been busy rendering chunks and how long the frames have taken,
+ * which tells how evenly the work is spread. The difference between the two is the time a participant was idle.
+ */
+public class RenderPool {
+    /**
+     * A unit of frame work. The pool calls {@link #render(int)} once for every chunk index of the frame, from any of its
+     * threads, so implementations must only touch state that belongs to the given chunk.
+     */
+    public interface ChunkTask {
+        void render(int chunk);
+    }
+
+    //The cursors are spread out in the array to keep them on separate cache lines
+    private static final int CURSOR_STRIDE = 16;
+    private static final int BUSY_TIME_STRIDE = 8;
+
+    private static RenderPool defaultPool;
+
+    private final Thread[] workers;
+    private final int participants;
+    private final Phaser phaser;
+
+    //Per participant segment bookkeeping. The cursor is the next unclaimed chunk, the end is exclusive
+    private final AtomicIntegerArray cursors;
+    private final int[] segmentEnds;
+
+    //The total time each participant has spent rendering chunks and the total time of all frames, in nanoseconds
+    private final AtomicLongArray busyTimes;
+    private volatile long frameTime;
+
+    //The state of the current frame. Written by the calling thread before the frame is released through the phaser
+    private ChunkTask task;
+    private volatile boolean shutdown;
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+    /**
+     * Creates a RenderPool with the given number of worker threads. The thread calling
+     * {@link #execute(int, ChunkTask)} will take part in the rendering as well, so a pool with zero workers is valid and
+     * will render everything on the calling thread.
+     *
+     * @param numberOfWorkers the number of threads that should be started for the pool
+     */
+    public RenderPool(int numberOfWorkers) {
+        if(numberOfWorkers < 0) throw new IllegalArgumentException("The number of workers can't be negative");
+
+        participants = numberOfWorkers + 1;
+        phaser = new Phaser(participants);
+        cursors = new AtomicIntegerArray(participants * CURSOR_STRIDE);
+        segmentEnds = new int[participants];
+        busyTimes = new AtomicLongArray(participants * BUSY_TIME_STRIDE);
+
+        workers = new Thread[numberOfWorkers];
+        for(int i = 0; i < workers.length; i++) {
+            int participant = i + 1;
+            workers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    work(participant);
+                }
+            }, "voxel-render-" + participant);
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+    }
+
+    /**
+     * Returns a pool shared by the whole application, sized so that the workers together with the calling thread
+     * occupy every available processor.
+     * @return the shared RenderPool
+     */
+    public static synchronized RenderPool getDefault() {
+        if(defaultPool == null) {
+            defaultPool = new RenderPool(Runtime.getRuntime().availableProcessors() - 1);
+        }
+        return defaultPool;
+    }
+
+    /**
+     * Renders one frame. The call blocks until every chunk in the range 0 to chunkCount has been rendered by the given
+     * task. Only one frame can be in flight at a time; concurrent callers will be queued.
+     *
+     * @param chunkCount the number of chunks in the frame
+     * @param task the task that renders a single chunk
+     * @throws InterruptedException if the calling thread was interrupted before the frame was started
+     */
+    public synchronized void execute(int chunkCount, ChunkTask task) throws InterruptedException {
+        if(shutdown) throw new IllegalStateException("The RenderPool has been shut down");
+        if(Thread.interrupted()) throw new InterruptedException();
+
+        //Hand each participant an equally sized segment of the frame
+        for(int i = 0; i < participants; i++) {
+            cursors.set(i * CURSOR_STRIDE, (int)((long)chunkCount * i / participants));
+            segmentEnds[i] = (int)((long)chunkCount * (i + 1) / participants);
+        }
+        this.task = task;
+
+        //Release the workers, do our share of the frame and wait for everybody else to finish
+        long start = System.nanoTime();
+        phaser.arriveAndAwaitAdvance();
+        renderChunks(0);
+        phaser.arriveAndAwaitAdvance();
+        frameTime += System.nanoTime() - start;
+
+        this.task = null;
+
+        Throwable throwable = failure.getAndSet(null);
+        if(throwable instanceof RuntimeException) throw (RuntimeException)throwable;
+        if(throwable instanceof Error) throw (Error)throwable;
+        if(throwable != null) throw new RuntimeException(throwable);
+    }
+
+    /**
+     * Returns the number of threads, including the calling thread, that take part in rendering a frame.
+     * @return the number of participants
+     */
+    public int getParallelism() {
+        return participants;
+    }
+
+    /**
+     * Returns the total time the given participant has spent rendering chunks since the pool was created. Participant 0
+     * is the thread calling execute, the workers are numbered from 1.
+     * @param participant the participant number
+     * @return the busy time in nanoseconds
+     */
+    public long getBusyTime(int participant) {
+        return busyTimes.get(participant * BUSY_TIME_STRIDE);
+    }
+
+    /**
+     * Returns the total time of all frames since the pool was created, from the release of the workers until the last
+     * of them was done.
+     * @return the frame time in nanoseconds
+     */
+    public long getFrameTime() {
+        return frameTime;
+    }
+
+    /**
+     * Stops the worker threads. The pool can't be used after it has been shut down.
+     */
+    public synchronized void shutdown() {
+        if(shutdown) return;
+        shutdown = true;
+
+        //Release the workers one last time, they will see the flag and leave the phaser
+        phaser.arriveAndDeregister();
+    }
+
+    /**
+     * The life cycle of a worker thread. The worker waits for a frame to be released, renders its share and reports
+     * back until the pool is shut down.
+     * @param participant the participant number of the worker
+     */
+    private void work(int participant) {
+        while(true) {
+            phaser.arriveAndAwaitAdvance();
+            if(shutdown) {
+                phaser.arriveAndDeregister();
+                return;
+            }
+
+            renderChunks(participant);
+            phaser.arriveAndAwaitAdvance();
+        }
+    }
+
+    /**
+     * Renders the segment of the given participant and thereafter steals chunks from the other segments until there is
+     * nothing left of the frame.
+     * @param participant the participant number of the calling thread
+     */
+    private void renderChunks(int participant) {
+        long start = System.nanoTime();
+        try {
+            for(int i = 0; i < participants; i++) {
+                int segment = (participant + i) % participants;
+                int chunk;
+                while((chunk = cursors.getAndIncrement(segment * CURSOR_STRIDE)) < segmentEnds[segment]) {
+                    task.render(chunk);
+                }
+            }
+        } catch(Throwable throwable) {
+            failure.compareAndSet(null, throwable);
+        }
+
+        //Only the participant itself writes its busy time
+        int index = participant * BUSY_TIME_STRIDE;
+        busyTimes.lazySet(index, busyTimes.get(index) + System.nanoTime() - start);
+    }
+}
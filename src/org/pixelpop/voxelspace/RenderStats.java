@@ -0,0 +1,235 @@
+package org.pixelpop.voxelspace;
+
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * RenderStats collects timings of the frames of a VoxelView: the frame time, the time of each stage of a frame, how
+ * busy each render thread has been and how many terrain samples each ray takes. The times are kept in
+ * LatencyHistograms so the tail of the frame times can be seen and not only the mean, and recording never allocates.
+ *
+ * The view records the clear and trace stages and the frame time once it has been given the stats through
+ * VoxelView.setRenderStats. The compile and present stages belong to whoever shows the frames and are recorded by them.
+ * The stats can be registered as an MXBean and can print a summary line periodically.
+ */
+public class RenderStats implements RenderStatsMXBean {
+    /**
+     * The stages of a frame.
+     */
+    public enum Stage {
+        //Restoring the background of the image
+        CLEAR,
+        //Tracing the columns on the render threads
+        TRACE,
+        //Handing the rendered image over to be shown
+        COMPILE,
+        //Showing the image on screen
+        PRESENT
+    }
+
+    private final LatencyHistogram frameTimes = new LatencyHistogram();
+    private final LatencyHistogram[] stageTimes = new LatencyHistogram[Stage.values().length];
+    private final AtomicLong rays = new AtomicLong();
+    private final AtomicLong samples = new AtomicLong();
+
+    //The pool whose threads are measured and its busy and frame times at the last reset
+    private RenderPool renderPool;
+    private long[] busyTimeBaselines = new long[0];
+    private long frameTimeBaseline;
+
+    private ScheduledExecutorService logger;
+
+    public RenderStats() {
+        for(int i = 0; i < stageTimes.length; i++) stageTimes[i] = new LatencyHistogram();
+    }
+
+    /**
+     * Records the time of a stage of a frame.
+     * @param stage the stage
+     * @param nanos the time in nanoseconds
+     */
+    public void recordStage(Stage stage, long nanos) {
+        stageTimes[stage.ordinal()].record(nanos);
+    }
+
+    /**
+     * Records the time of a frame.
+     * @param nanos the time in nanoseconds
+     */
+    public void recordFrame(long nanos) {
+        frameTimes.record(nanos);
+    }
+
+    /**
+     * Records the rays of a frame.
+     * @param rays the number of rays traced
+     * @param samples the number of terrain samples taken by the rays together
+     */
+    public void recordRays(int rays, long samples) {
+        this.rays.addAndGet(rays);
+        this.samples.addAndGet(samples);
+    }
+
+    /**
+     * Sets the pool whose render threads are measured.
+     * @param renderPool the pool
+     */
+    public synchronized void setRenderPool(RenderPool renderPool) {
+        this.renderPool = renderPool;
+        resetWorkers();
+    }
+
+    /**
+     * Registers the stats with the platform MBean server.
+     * @param name the name that tells these stats apart from others
+     * @throws JMException if the stats can't be registered, e.g. because the name is taken
+     */
+    public void register(String name) throws JMException {
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+                new ObjectName("org.pixelpop.voxelspace:type=RenderStats,name=" + ObjectName.quote(name)));
+    }
+
+    /**
+     * Prints a summary line to standard output at a fixed rate, from a daemon thread.
+     * @param period the time between the lines
+     * @param unit the unit of the period
+     */
+    public synchronized void startLogging(long period, TimeUnit unit) {
+        stopLogging();
+        logger = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "voxel-render-stats");
+            thread.setDaemon(true);
+            return thread;
+        });
+        logger.scheduleAtFixedRate(() -> System.out.println(this), period, period, unit);
+    }
+
+    /**
+     * Stops printing summary lines.
+     */
+    public synchronized void stopLogging() {
+        if(logger != null) logger.shutdownNow();
+        logger = null;
+    }
+
+    @Override
+    public long getFrameCount() {
+        return frameTimes.getCount();
+    }
+
+    @Override
+    public double getFrameTimeMean() {
+        return frameTimes.getMean() / 1e6;
+    }
+
+    @Override
+    public double getFrameTimeP50() {
+        return frameTimes.getPercentile(.5) / 1e6;
+    }
+
+    @Override
+    public double getFrameTimeP99() {
+        return frameTimes.getPercentile(.99) / 1e6;
+    }
+
+    @Override
+    public double getFrameTimeMax() {
+        return frameTimes.getMax() / 1e6;
+    }
+
+    @Override
+    public String[] getStages() {
+        String[] stages = new String[stageTimes.length];
+        for(Stage stage : Stage.values()) stages[stage.ordinal()] = stage.name();
+        return stages;
+    }
+
+    @Override
+    public double[] getStageTimeP50() {
+        double[] times = new double[stageTimes.length];
+        for(int i = 0; i < times.length; i++) times[i] = stageTimes[i].getPercentile(.5) / 1e6;
+        return times;
+    }
+
+    @Override
+    public double[] getStageTimeP99() {
+        double[] times = new double[stageTimes.length];
+        for(int i = 0; i < times.length; i++) times[i] = stageTimes[i].getPercentile(.99) / 1e6;
+        return times;
+    }
+
+    @Override
+    public double[] getStageTimeMax() {
+        double[] times = new double[stageTimes.length];
+        for(int i = 0; i < times.length; i++) times[i] = stageTimes[i].getMax() / 1e6;
+        return times;
+    }
+
+    @Override
+    public synchronized double[] getWorkerUtilization() {
+        double[] utilization = new double[busyTimeBaselines.length];
+        if(renderPool == null) return utilization;
+
+        long frameTime = renderPool.getFrameTime() - frameTimeBaseline;
+        for(int i = 0; i < utilization.length && frameTime > 0; i++) {
+            utilization[i] = (double)(renderPool.getBusyTime(i) - busyTimeBaselines[i]) / frameTime;
+        }
+        return utilization;
+    }
+
+    @Override
+    public double getSamplesPerRay() {
+        long rays = this.rays.get();
+        return rays > 0 ? (double)samples.get() / rays : 0;
+    }
+
+    @Override
+    public synchronized void reset() {
+        frameTimes.reset();
+        for(LatencyHistogram histogram : stageTimes) histogram.reset();
+        rays.set(0);
+        samples.set(0);
+        resetWorkers();
+    }
+
+    /**
+     * Takes the current busy and frame times of the render pool as the baselines of the worker utilization.
+     */
+    private void resetWorkers() {
+        if(renderPool == null) return;
+
+        busyTimeBaselines = new long[renderPool.getParallelism()];
+        for(int i = 0; i < busyTimeBaselines.length; i++) busyTimeBaselines[i] = renderPool.getBusyTime(i);
+        frameTimeBaseline = renderPool.getFrameTime();
+    }
+
+    /**
+     * Returns a one line summary: the frame count, the frame time percentiles, the median of each stage, the samples
+     * per ray and the utilization of each render thread.
+     */
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append(String.format(Locale.ROOT, "frames: %d, frame: mean %.3f p50 %.3f p99 %.3f max %.3f ms",
+                getFrameCount(), getFrameTimeMean(), getFrameTimeP50(), getFrameTimeP99(), getFrameTimeMax()));
+
+        double[] stageTimes = getStageTimeP50();
+        for(Stage stage : Stage.values()) {
+            builder.append(String.format(Locale.ROOT, ", %s %.3f", stage.name().toLowerCase(Locale.ROOT),
+                    stageTimes[stage.ordinal()]));
+        }
+
+        builder.append(String.format(Locale.ROOT, ", samples/ray: %.1f, busy:", getSamplesPerRay()));
+        for(double utilization : getWorkerUtilization()) {
+            builder.append(String.format(Locale.ROOT, " %.0f%%", utilization * 100));
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,66 @@
+package org.pixelpop.voxelspace;
+
+/**
+ * The management interface of RenderStats. All times are in milliseconds.
+ */
+public interface RenderStatsMXBean {
+    /**
+     * @return the number of frames recorded since the last reset
+     */
+    long getFrameCount();
+
+    /**
+     * @return the mean frame time
+     */
+    double getFrameTimeMean();
+
+    /**
+     * @return the median frame time
+     */
+    double getFrameTimeP50();
+
+    /**
+     * @return the 99th percentile frame time
+     */
+    double getFrameTimeP99();
+
+    /**
+     * @return the longest frame time
+     */
+    double getFrameTimeMax();
+
+    /**
+     * @return the names of the stages of a frame, in the order of the stage times
+     */
+    String[] getStages();
+
+    /**
+     * @return the median time of each stage
+     */
+    double[] getStageTimeP50();
+
+    /**
+     * @return the 99th percentile time of each stage
+     */
+    double[] getStageTimeP99();
+
+    /**
+     * @return the longest time of each stage
+     */
+    double[] getStageTimeMax();
+
+    /**
+     * @return the fraction of the frame time that each render thread has been busy, the calling thread first
+     */
+    double[] getWorkerUtilization();
+
+    /**
+     * @return the mean number of terrain samples taken per ray
+     */
+    double getSamplesPerRay();
+
+    /**
+     * Clears all recorded values.
+     */
+    void reset();
+}
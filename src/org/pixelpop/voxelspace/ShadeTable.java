@@ -0,0 +1,38 @@
+package org.pixelpop.voxelspace;
+
+/**
+ * ShadeTable holds precalculated shades for every color channel value at 256 levels of fog. Level 255 leaves a color as
+ * it is and level 0 turns it black. Shading a color through the table costs three lookups rather than three floating
+ * point multiplications, and the table is small enough (64 kB) to stay in the cache while rendering.
+ */
+final class ShadeTable {
+    //The number of fog levels
+    static final int levels = 256;
+
+    //The shade of each channel value, stored level by level
+    private static final byte[] shades = new byte[levels * 256];
+
+    static {
+        for(int level = 0; level < levels; level++) {
+            for(int value = 0; value < 256; value++) {
+                shades[(level << 8) + value] = (byte)(value * level / (levels - 1));
+            }
+        }
+    }
+
+    private ShadeTable() {
+    }
+
+    /**
+     * Shades the given RGB color by the given fog level.
+     * @param color the color to shade
+     * @param level the fog level, between 0 (black) and 255 (unchanged)
+     * @return the shaded color
+     */
+    static int shade(int color, int level) {
+        int row = level << 8;
+        return ((shades[row + ((color >> 16) & 0xFF)] & 0xFF) << 16)
+                + ((shades[row + ((color >> 8) & 0xFF)] & 0xFF) << 8)
+                + (shades[row + (color & 0xFF)] & 0xFF);
+    }
+}
@@ -0,0 +1,91 @@
+package org.pixelpop.voxelspace;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.LongConsumer;
+
+/**
+ * SimulationLoop steps a simulation at a fixed rate on a thread of its own, apart from the rendering. A step typically
+ * moves the views, e.g. by a CameraPath, and so publishes a new Camera that the next frame is rendered from. The render
+ * loop never waits for the simulation and the simulation never waits for a frame, so a slow frame doesn't slow down
+ * the movement and a fast one doesn't speed it up.
+ *
+ * Whatever a step throws, an Error included, is handed to the failure handler and the loop goes on with the next step,
+ * so a single bad step doesn't stop the camera. By default the failure is printed as a warning to standard error. A
+ * handler that throws itself is printed as a warning as well and doesn't stop the loop either. Only stop ends the loop.
+ */
+public final class SimulationLoop {
+    private final long stepTime;
+    private final LongConsumer step;
+    private final Consumer<Throwable> failureHandler;
+    private final AtomicLong ticks = new AtomicLong();
+    private ScheduledExecutorService executor;
+
+    /**
+     * Creates a SimulationLoop that prints the failures of its steps as warnings. The loop isn't started until start is
+     * called.
+     * @param stepTime the time between the steps, in nanoseconds
+     * @param step called once every step with the number of the step, starting at 0
+     */
+    public SimulationLoop(long stepTime, LongConsumer step) {
+        this(stepTime, step, failure -> System.err.println("Warning: a simulation step failed, stepping on: " + failure));
+    }
+
+    /**
+     * Creates a SimulationLoop. The loop isn't started until start is called.
+     * @param stepTime the time between the steps, in nanoseconds
+     * @param step called once every step with the number of the step, starting at 0
+     * @param failureHandler called on the simulation thread with what a step threw, before the loop goes on
+     */
+    public SimulationLoop(long stepTime, LongConsumer step, Consumer<Throwable> failureHandler) {
+        if(stepTime <= 0) throw new IllegalArgumentException("The step time must be positive");
+        this.stepTime = stepTime;
+        this.step = step;
+        this.failureHandler = failureHandler;
+    }
+
+    /**
+     * Starts stepping the simulation.
+     */
+    public synchronized void start() {
+        if(executor != null) throw new IllegalStateException("The loop is already started");
+        executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "voxel-simulation");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleAtFixedRate(() -> {
+            try {
+                step.accept(ticks.get());
+            } catch(Throwable failure) {
+                try {
+                    failureHandler.accept(failure);
+                } catch(Throwable handlerFailure) {
+                    System.err.println("Warning: the failure handler of the simulation failed, stepping on: "
+                            + handlerFailure);
+                }
+            }
+            ticks.incrementAndGet();
+        }, 0, stepTime, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Stops stepping the simulation. A step that is running is allowed to finish.
+     */
+    public synchronized void stop() {
+        if(executor == null) return;
+        executor.shutdown();
+        executor = null;
+    }
+
+    /**
+     * Returns the number of steps taken so far.
+     * @return the number of steps
+     */
+    public long getTicks() {
+        return ticks.get();
+    }
+}
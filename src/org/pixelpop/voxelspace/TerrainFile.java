@@ -0,0 +1,162 @@
+package org.pixelpop.voxelspace;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * TerrainFile reads and writes VoxelSpaces in a compact native format. The file holds the voxels exactly as they are
+ * stored in memory, so loading a terrain is a matter of memory mapping the file: startup is near instant, the pages are
+ * read from disk as the view first touches them, and processes mapping the same file share it through the page cache.
+ *
+ * The format is little endian and starts with a 64 byte header:
+ * <pre>
+ *  0 magic "VXLT"
+ *  4 version
+ *  8 width
+ * 12 height
+ * 16 layout type (0 linear, 1 tiled, 2 morton)
+ * 20 tile size
+ * 24 highest rendered voxel height
+ * 28 flags (1 = the file has a ground plane)
+ * </pre>
+ * The header is followed by the packed voxels (an int each, in the order of the layout) and, if the flag is set, by
+ * the ground plane (a byte each, in the same order).
+ */
+public final class TerrainFile {
+    private static final int MAGIC = ('V' << 24) | ('X' << 16) | ('L' << 8) | 'T';
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 64;
+    private static final int GROUND_PLANE = 1;
+
+    //The size of the buffer used when writing
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    private TerrainFile() {
+    }
+
+    /**
+     * Writes the given VoxelSpace to a terrain file.
+     * @param voxelSpace the VoxelSpace to write
+     * @param file the file to write to
+     * @throws IOException
+     */
+    public static void write(VoxelSpace voxelSpace, Path file) throws IOException {
+        TerrainStorage terrain = voxelSpace.terrain;
+        long size = (long)voxelSpace.width * voxelSpace.height;
+
+        try(FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+            buffer.putInt(MAGIC);
+            buffer.putInt(VERSION);
+            buffer.putInt(voxelSpace.width);
+            buffer.putInt(voxelSpace.height);
+            buffer.putInt(voxelSpace.layout.type);
+            buffer.putInt(voxelSpace.layout.tileSize);
+            buffer.putInt(voxelSpace.maxHeight);
+            buffer.putInt(terrain.hasGroundPlane() ? GROUND_PLANE : 0);
+            buffer.position(HEADER_SIZE);
+
+            for(long i = 0; i < size; i++) {
+                if(buffer.remaining() < Integer.BYTES) drain(buffer, channel);
+                buffer.putInt(terrain.get(i));
+            }
+
+            if(terrain.hasGroundPlane()) {
+                for(long i = 0; i < size; i++) {
+                    if(!buffer.hasRemaining()) drain(buffer, channel);
+                    buffer.put((byte)terrain.getGround(i));
+                }
+            }
+            drain(buffer, channel);
+        }
+    }
+
+    /**
+     * Maps a terrain file into memory. The returned VoxelSpace reads its voxels straight from the mapping, nothing but
+     * the header is read up front. Files larger than a single mapping can hold are mapped in chunks.
+     * @param file the terrain file
+     * @return the VoxelSpace of the file
+     * @throws IOException if the file can't be read or isn't a terrain file
+     */
+    public static VoxelSpace map(Path file) throws IOException {
+        try(FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            while(header.hasRemaining() && channel.read(header) >= 0);
+            header.flip();
+
+            if(header.remaining() < HEADER_SIZE || header.getInt() != MAGIC)
+                throw new IOException(file + " is not a terrain file");
+            int version = header.getInt();
+            if(version != VERSION) throw new IOException("Unsupported terrain file version " + version);
+
+            int width = header.getInt();
+            int height = header.getInt();
+            TerrainLayout layout = TerrainLayout.of(header.getInt(), width, height, header.getInt());
+            int maxHeight = header.getInt();
+            boolean groundPlane = (header.getInt() & GROUND_PLANE) != 0;
+
+            long size = (long)width * height;
+            if(channel.size() < HEADER_SIZE + size * (groundPlane ? Integer.BYTES + 1 : Integer.BYTES))
+                throw new IOException(file + " is truncated");
+
+            //The mappings stay valid after the channel has been closed
+            return new VoxelSpace(width, height, layout, OffHeapTerrainStorage.map(channel,
+                    FileChannel.MapMode.READ_ONLY, HEADER_SIZE, size, groundPlane), maxHeight);
+        }
+    }
+
+    /**
+     * Converts a color map and a height map image into a terrain file.
+     * @param colorMapResource the color map image
+     * @param heightMapResource the height map image
+     * @param layout the name of the layout to store the terrain in: linear, morton or tiled followed by the tile size
+     * @param file the terrain file to write
+     * @throws IOException
+     */
+    public static void convert(InputStream colorMapResource, InputStream heightMapResource, String layout, Path file)
+            throws IOException {
+        VoxelSpace voxelSpace = new VoxelSpace(colorMapResource, heightMapResource);
+
+        if(layout.equals("morton")) voxelSpace.setLayout(TerrainLayout.morton(voxelSpace.width, voxelSpace.height));
+        else if(layout.startsWith("tiled")) voxelSpace.setLayout(TerrainLayout.tiled(voxelSpace.width,
+                voxelSpace.height, Integer.parseInt(layout.substring("tiled".length()))));
+        else if(!layout.equals("linear")) throw new IllegalArgumentException("Unknown terrain layout: " + layout);
+
+        write(voxelSpace, file);
+    }
+
+    /**
+     * Writes the content of the buffer to the channel and clears it.
+     */
+    private static void drain(ByteBuffer buffer, FileChannel channel) throws IOException {
+        buffer.flip();
+        while(buffer.hasRemaining()) channel.write(buffer);
+        buffer.clear();
+    }
+
+    /**
+     * Converts a color map and a height map image into a terrain file.
+     *
+     * @param args the color map image, the height map image, the terrain file to write and optionally the layout
+     * @throws IOException
+     */
+    public static void main(String[] args) throws IOException {
+        if(args.length < 3) {
+            System.err.println("Usage: TerrainFile <color map> <height map> <terrain file> [linear|morton|tiled<size>]");
+            System.exit(1);
+        }
+
+        try(InputStream colorMap = new FileInputStream(args[0]); InputStream heightMap = new FileInputStream(args[1])) {
+            convert(colorMap, heightMap, args.length > 3 ? args[3] : "linear", Paths.get(args[2]));
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package org.pixelpop.voxelspace;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * TerrainGenerator generates VoxelSpaces from code. The height of the terrain is the sum of a list of TerrainLayers,
+ * e.g. hills and noise, after which the terrain is colored by its height; water, beach and grass. The grass is given a
+ * random color and some of it a random length, which is only rendered and doesn't change the ground height.
+ *
+ * The terrain is generated in square tiles that are divided between the threads of a ForkJoinPool. Each tile has a
+ * random generator of its own, split off from the seed in tile order before the work is divided, and the layers are
+ * pure functions of the coordinate. The same seed and layers therefore always generate the same terrain, whatever the
+ * number of threads.
+ */
+public final class TerrainGenerator {
+    //The width and height of the tiles the terrain is generated in
+    private static final int tileSize = 64;
+
+    //Tiles are split between threads until a task has no more than this many tiles
+    private static final int tilesPerTask = 4;
+
+    private final long seed;
+    private final List<TerrainLayer> layers = new ArrayList<>();
+
+    /**
+     * Creates a generator without layers, which generates a flat sea.
+     * @param seed the seed of the random values used to generate the terrain
+     */
+    public TerrainGenerator(long seed) {
+        this.seed = seed;
+    }
+
+    /**
+     * Creates a generator of the classic hills of the Voxel Engine. The hills need a terrain of at least 1024 x 1024
+     * voxels to not overlap themselves.
+     * @param seed the seed of the random values used to generate the terrain
+     * @return the generator
+     */
+    public static TerrainGenerator hills(long seed) {
+        return new TerrainGenerator(seed)
+                .addLayer(TerrainLayer.bump(90, 400, 400, 400))
+                .addLayer(TerrainLayer.bump(110, 70, 200, 200))
+                .addLayer(TerrainLayer.bump(130, 40, 300, 300))
+                .addLayer(TerrainLayer.bump(120, 80, 500, 500))
+                .addLayer(TerrainLayer.bump(100, 30, 600, 600))
+                .addLayer(TerrainLayer.bump(170, 80, 700, 700))
+                .addLayer(TerrainLayer.bump(100, 20, 800, 800))
+                .addLayer(TerrainLayer.bump(100, 80, 200, 800))
+                .addLayer(TerrainLayer.bump(80, 200, 300, 700))
+                .addLayer(TerrainLayer.bump(140, 150, 400, 900));
+    }
+
+    /**
+     * Adds a layer on top of the layers already added.
+     * @param layer the layer
+     * @return this generator
+     */
+    public TerrainGenerator addLayer(TerrainLayer layer) {
+        layers.add(layer);
+        return this;
+    }
+
+    /**
+     * Generates a VoxelSpace using the common ForkJoinPool. The terrain is kept on the heap unless it's too large for
+     * an array.
+     * @param width the width of the VoxelSpace, a power of two
+     * @param height the height of the VoxelSpace, a power of two
+     * @return the VoxelSpace
+     */
+    public VoxelSpace generate(int width, int height) {
+        return generate(width, height, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Generates a VoxelSpace using the threads of the given pool. The terrain is kept on the heap unless it's too large
+     * for an array.
+     * @param width the width of the VoxelSpace, a power of two
+     * @param height the height of the VoxelSpace, a power of two
+     * @param pool the pool to generate the terrain with
+     * @return the VoxelSpace
+     */
+    public VoxelSpace generate(int width, int height, ForkJoinPool pool) {
+        return generate(width, height, pool, false);
+    }
+
+    /**
+     * Generates a VoxelSpace using the threads of the given pool.
+     * @param width the width of the VoxelSpace, a power of two
+     * @param height the height of the VoxelSpace, a power of two
+     * @param pool the pool to generate the terrain with
+     * @param offHeap whether the terrain and its mipmaps should be kept off the heap, out of the way of the garbage
+     *                collector
+     * @return the VoxelSpace
+     */
+    public VoxelSpace generate(int width, int height, ForkJoinPool pool, boolean offHeap) {
+        return new VoxelSpace(width, height, this, pool, offHeap);
+    }
+
+    /**
+     * Generates the terrain into the given storage.
+     * @param layout the layout to store the voxels in
+     * @param width the width of the terrain
+     * @param height the height of the terrain
+     * @param terrain the storage of the voxels and the ground plane, filled by the generator
+     * @param pool the pool to generate the terrain with
+     * @return the highest rendered voxel height
+     */
+    int generate(TerrainLayout layout, int width, int height, TerrainStorage terrain, ForkJoinPool pool) {
+        int tilesPerRow = (width + tileSize - 1) / tileSize;
+        int tiles = tilesPerRow * ((height + tileSize - 1) / tileSize);
+
+        //The seeds of the tiles are drawn in tile order, so each tile gets the same seed whichever thread generates it
+        SplittableRandom random = new SplittableRandom(seed);
+        long[] tileSeeds = new long[tiles];
+        for(int tile = 0; tile < tiles; tile++) tileSeeds[tile] = random.nextLong();
+
+        TerrainLayer[] layers = this.layers.toArray(new TerrainLayer[0]);
+        return pool.invoke(new TileTask(0, tiles, tile -> generateTile(tile % tilesPerRow * tileSize,
+                tile / tilesPerRow * tileSize, width, height, layers, new SplittableRandom(tileSeeds[tile]), layout,
+                terrain)));
+    }
+
+    /**
+     * Generates a tile of the terrain.
+     * @return the highest rendered voxel height of the tile
+     */
+    private static int generateTile(int left, int top, int width, int height, TerrainLayer[] layers,
+                                    SplittableRandom random, TerrainLayout layout, TerrainStorage terrain) {
+        int right = Math.min(left + tileSize, width);
+        int bottom = Math.min(top + tileSize, height);
+
+        //Only the layers that reach the tile need to be evaluated
+        TerrainLayer[] tileLayers = new TerrainLayer[layers.length];
+        int tileLayerCount = 0;
+        for(TerrainLayer layer : layers) {
+            if(layer.covers(left, top, right, bottom, width, height)) tileLayers[tileLayerCount++] = layer;
+        }
+
+        int maxHeight = 0;
+        for(int y = top; y < bottom; y++) {
+            for(int x = left; x < right; x++) {
+                short groundHeight = 0;
+                for(int i = 0; i < tileLayerCount; i++) groundHeight += tileLayers[i].height(x, y, width, height);
+
+                //Based on the height value map some color; 0 is water, 1-5 is beach, 6 and higher is grass
+                short renderHeight = groundHeight;
+                int color;
+                if(groundHeight > 5) {
+                    //Let the grass grow!
+                    if(random.nextDouble() > 0.8) renderHeight += (int)(random.nextDouble() * 30);
+                    color = (100 + (int)(random.nextDouble() * 50)) << 8;
+                } else if(groundHeight > 0) {
+                    color = ((100 + (int)(random.nextDouble() * 50)) << 16) + ((100 + (int)(random.nextDouble() * 50)) << 8);
+                } else {
+                    color = 100 + (int)(random.nextDouble() * 50);
+                }
+
+                //Only the lowest 8 bits of a height are rendered, so only those are kept
+                long index = layout.index(x, y);
+                terrain.set(index, ((renderHeight & 0xFF) << 24) | (color & 0xFFFFFF));
+                terrain.setGround(index, groundHeight & 0xFF);
+                maxHeight = Math.max(maxHeight, renderHeight & 0xFF);
+            }
+        }
+        return maxHeight;
+    }
+
+    /**
+     * Generates a range of tiles, splitting the range between threads, and returns the highest voxel height of them.
+     */
+    private static class TileTask extends RecursiveTask<Integer> {
+        private static final long serialVersionUID = 1L;
+
+        private final int from;
+        private final int to;
+        private final IntUnaryOperator tile;
+
+        TileTask(int from, int to, IntUnaryOperator tile) {
+            this.from = from;
+            this.to = to;
+            this.tile = tile;
+        }
+
+        @Override
+        protected Integer compute() {
+            if(to - from <= tilesPerTask) {
+                int maxHeight = 0;
+                for(int i = from; i < to; i++) maxHeight = Math.max(maxHeight, tile.applyAsInt(i));
+                return maxHeight;
+            }
+
+            int middle = (from + to) >>> 1;
+            TileTask first = new TileTask(from, middle, tile);
+            first.fork();
+            int maxHeight = new TileTask(middle, to, tile).compute();
+            return Math.max(maxHeight, first.join());
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package org.pixelpop.voxelspace;
+
+/**
+ * A TerrainLayer adds height to the terrain generated by a TerrainGenerator. The layers of a generator are summed voxel
+ * by voxel in the order they were added. A layer must be a pure function of the coordinate, which is what makes the
+ * generated terrain the same however it is divided between threads.
+ */
+public interface TerrainLayer {
+    /**
+     * Returns the height that the layer adds to the given voxel.
+     * @param x the x coordinate of the voxel
+     * @param y the y coordinate of the voxel
+     * @param width the width of the terrain
+     * @param height the height of the terrain
+     * @return the added height
+     */
+    int height(int x, int y, int width, int height);
+
+    /**
+     * Returns whether the layer may add height to any voxel within the given rectangle. Layers that only cover a part
+     * of the terrain use this to let the generator skip them for the rest of it.
+     * @param left the left edge of the rectangle
+     * @param top the top edge of the rectangle
+     * @param right the right edge of the rectangle, exclusive
+     * @param bottom the bottom edge of the rectangle, exclusive
+     * @param width the width of the terrain
+     * @param height the height of the terrain
+     * @return false if the layer adds nothing within the rectangle
+     */
+    default boolean covers(int left, int top, int right, int bottom, int width, int height) {
+        return true;
+    }
+
+    /**
+     * Returns a hill based on a cos curve. The hill wraps around the edges of the terrain.
+     * @param bumpHeight the height of the bump
+     * @param steepness how steep the hill sides should be. The steepness is the radius of the hill. The lower the value
+     *                  is the steeper the hill will be
+     * @param x the x position of where the bump should be placed
+     * @param y the y position of where the bump should be placed
+     * @return the hill layer
+     */
+    static TerrainLayer bump(int bumpHeight, int steepness, int x, int y) {
+        return new TerrainLayer() {
+            @Override
+            public int height(int voxelX, int voxelY, int width, int height) {
+                /* The bump covers the offsets -steepness to steepness - 1 from its position in each direction. Find the
+                offsets that land on the voxel, there are several if the bump is larger than the terrain */
+                int sum = 0;
+                for(int i = ((voxelX - x + steepness) & (width - 1)) - steepness; i < steepness; i += width) {
+                    for(int j = ((voxelY - y + steepness) & (height - 1)) - steepness; j < steepness; j += height) {
+                        double distance = Math.sqrt(i * i + j * j);
+                        if(distance > steepness) continue;
+                        sum += (short)((Math.cos((distance * Math.PI) / steepness) + 1) * bumpHeight / 2);
+                    }
+                }
+                return sum;
+            }
+
+            @Override
+            public boolean covers(int left, int top, int right, int bottom, int width, int height) {
+                return overlaps(x - steepness, steepness * 2, left, right, width)
+                        && overlaps(y - steepness, steepness * 2, top, bottom, height);
+            }
+        };
+    }
+
+    /**
+     * Returns smooth value noise. Random heights between 0 and the amplitude are placed on a grid and interpolated
+     * between. The random heights are hashed from the seed and the grid coordinate, so the noise is the same wherever
+     * and in whatever order it is evaluated. The noise tiles seamlessly when the scale divides the terrain size.
+     * @param seed the seed of the noise
+     * @param amplitude the highest height of the noise
+     * @param scale the distance between the grid points
+     * @return the noise layer
+     */
+    static TerrainLayer noise(long seed, int amplitude, int scale) {
+        return new TerrainLayer() {
+            @Override
+            public int height(int x, int y, int width, int height) {
+                int gridWidth = Math.max(1, width / scale);
+                int gridHeight = Math.max(1, height / scale);
+                int gridX = x / scale;
+                int gridY = y / scale;
+                double fractionX = smooth((x % scale) / (double)scale);
+                double fractionY = smooth((y % scale) / (double)scale);
+
+                double top = lattice(gridX % gridWidth, gridY % gridHeight) * (1 - fractionX)
+                        + lattice((gridX + 1) % gridWidth, gridY % gridHeight) * fractionX;
+                double bottom = lattice(gridX % gridWidth, (gridY + 1) % gridHeight) * (1 - fractionX)
+                        + lattice((gridX + 1) % gridWidth, (gridY + 1) % gridHeight) * fractionX;
+                return (int)((top * (1 - fractionY) + bottom * fractionY) * amplitude);
+            }
+
+            /**
+             * Returns the random value, between 0 and 1, of a grid point.
+             */
+            private double lattice(int gridX, int gridY) {
+                long hash = seed + gridX * 0x9E3779B97F4A7C15L + gridY * 0xC2B2AE3D27D4EB4FL;
+                hash = (hash ^ (hash >>> 33)) * 0xFF51AFD7ED558CCDL;
+                hash = (hash ^ (hash >>> 33)) * 0xC4CEB9FE1A85EC53L;
+                return ((hash ^ (hash >>> 33)) >>> 11) * 0x1.0p-53;
+            }
+
+            /**
+             * Eases the interpolation so that the noise has no visible grid lines.
+             */
+            private double smooth(double fraction) {
+                return fraction * fraction * (3 - 2 * fraction);
+            }
+        };
+    }
+
+    /**
+     * Returns whether an interval that wraps around the terrain overlaps another interval within the terrain.
+     * @param start the start of the wrapping interval, may be outside the terrain
+     * @param length the length of the wrapping interval
+     * @param from the start of the other interval
+     * @param to the end of the other interval, exclusive
+     * @param size the size of the terrain
+     * @return true if the intervals overlap
+     */
+    static boolean overlaps(int start, int length, int from, int to, int size) {
+        if(length >= size) return true;
+        int wrappedStart = start & (size - 1);
+        return ((from - wrappedStart) & (size - 1)) < length || ((wrappedStart - from) & (size - 1)) < to - from;
+    }
+}
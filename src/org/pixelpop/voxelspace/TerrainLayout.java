@@ -0,0 +1,150 @@
+package org.pixelpop.voxelspace;
+
+/**
+ * TerrainLayout decides where in the terrain array of a VoxelSpace the voxel of each coordinate is stored. A ray that
+ * marches through a row-major map strides a full row for every step in y, so rays that don't run along the x axis touch
+ * a new cache line for almost every sample. Storing the map in square tiles, or in Morton (Z-order), keeps voxels that
+ * are close to each other in the map close to each other in memory as well, whatever the direction of the ray.
+ *
+ * The index of a coordinate is the sum of an x offset and a y offset which are looked up in two small tables. The
+ * tables are precalculated for each layout, so every layout costs the same two lookups and an addition. The indices are
+ * longs, so terrains may hold more voxels than an array can.
+ */
+public final class TerrainLayout {
+    //The types of layouts, as stored in terrain files
+    static final int LINEAR = 0;
+    static final int TILED = 1;
+    static final int MORTON = 2;
+
+    //The offsets of each x and each y coordinate. The index of a voxel is the sum of the two
+    final long[] xOffsets;
+    final long[] yOffsets;
+    final int widthMask;
+    final int heightMask;
+
+    //The type of the layout and, for tiled layouts, the size of the tiles
+    final int type;
+    final int tileSize;
+
+    private TerrainLayout(int type, int tileSize, int width, int height) {
+        if(Integer.bitCount(width) != 1 || Integer.bitCount(height) != 1)
+            throw new IllegalArgumentException("The width and height of a terrain must be powers of two");
+
+        this.type = type;
+        this.tileSize = tileSize;
+        xOffsets = new long[width];
+        yOffsets = new long[height];
+        widthMask = width - 1;
+        heightMask = height - 1;
+    }
+
+    /**
+     * Creates the classic row by row layout.
+     * @param width the width of the terrain
+     * @param height the height of the terrain
+     * @return the layout
+     */
+    public static TerrainLayout linear(int width, int height) {
+        TerrainLayout layout = new TerrainLayout(LINEAR, 0, width, height);
+        for(int x = 0; x < width; x++) layout.xOffsets[x] = x;
+        for(int y = 0; y < height; y++) layout.yOffsets[y] = (long)y * width;
+        return layout;
+    }
+
+    /**
+     * Creates a layout of square tiles. The tiles are stored row by row and the voxels within each tile are stored row
+     * by row as well.
+     * @param width the width of the terrain
+     * @param height the height of the terrain
+     * @param tileSize the width and height of the tiles, a power of two no larger than the terrain
+     * @return the layout
+     */
+    public static TerrainLayout tiled(int width, int height, int tileSize) {
+        if(Integer.bitCount(tileSize) != 1 || tileSize > width || tileSize > height)
+            throw new IllegalArgumentException("The tile size must be a power of two no larger than the terrain");
+
+        TerrainLayout layout = new TerrainLayout(TILED, tileSize, width, height);
+        int shift = Integer.numberOfTrailingZeros(tileSize);
+        int tilesPerRow = width >> shift;
+        for(int x = 0; x < width; x++) {
+            layout.xOffsets[x] = ((long)(x >> shift) << (shift * 2)) + (x & (tileSize - 1));
+        }
+        for(int y = 0; y < height; y++) {
+            layout.yOffsets[y] = (((long)(y >> shift) * tilesPerRow) << (shift * 2)) + ((y & (tileSize - 1)) << shift);
+        }
+        return layout;
+    }
+
+    /**
+     * Creates a Morton (Z-order) layout. The bits of the x and y coordinates are interleaved. When the terrain isn't
+     * square the remaining high bits of the longer side are placed above the interleaved bits.
+     * @param width the width of the terrain
+     * @param height the height of the terrain
+     * @return the layout
+     */
+    public static TerrainLayout morton(int width, int height) {
+        TerrainLayout layout = new TerrainLayout(MORTON, 0, width, height);
+        int interleavedBits = Integer.numberOfTrailingZeros(Math.min(width, height));
+        for(int x = 0; x < width; x++) layout.xOffsets[x] = spread(x, interleavedBits, 0);
+        for(int y = 0; y < height; y++) layout.yOffsets[y] = spread(y, interleavedBits, 1);
+        return layout;
+    }
+
+    /**
+     * Creates a layout of the given type.
+     * @param type the type of the layout
+     * @param width the width of the terrain
+     * @param height the height of the terrain
+     * @param tileSize the size of the tiles of a tiled layout
+     * @return the layout
+     */
+    static TerrainLayout of(int type, int width, int height, int tileSize) {
+        switch(type) {
+            case LINEAR: return linear(width, height);
+            case TILED: return tiled(width, height, tileSize);
+            case MORTON: return morton(width, height);
+            default: throw new IllegalArgumentException("Unknown terrain layout: " + type);
+        }
+    }
+
+    /**
+     * Spreads the bits of a coordinate for the Morton layout. The lowest bits are placed at every other position,
+     * starting at the given offset, and the bits above them are placed right after the interleaved bits.
+     */
+    private static long spread(int coordinate, int interleavedBits, int offset) {
+        long spread = 0;
+        for(int bit = 0; bit < interleavedBits; bit++) {
+            spread |= (long)((coordinate >> bit) & 1) << (bit * 2 + offset);
+        }
+        return spread | ((long)(coordinate >> interleavedBits) << (interleavedBits * 2));
+    }
+
+    /**
+     * Returns the index of the voxel at the given coordinate. Coordinates outside the terrain wrap around.
+     * @param x the x coordinate
+     * @param y the y coordinate
+     * @return the index in the terrain storage
+     */
+    public long index(int x, int y) {
+        return xOffsets[x & widthMask] + yOffsets[y & heightMask];
+    }
+
+    /**
+     * Returns whether the layout is made for a terrain of the given size.
+     * @param width the width of the terrain
+     * @param height the height of the terrain
+     * @return true if the sizes match
+     */
+    public boolean fits(int width, int height) {
+        return xOffsets.length == width && yOffsets.length == height;
+    }
+
+    @Override
+    public String toString() {
+        switch(type) {
+            case TILED: return "tiled" + tileSize;
+            case MORTON: return "morton";
+            default: return "linear";
+        }
+    }
+}
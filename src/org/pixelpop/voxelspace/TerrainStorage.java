@@ -0,0 +1,75 @@
+package org.pixelpop.voxelspace;
+
+/**
+ * TerrainStorage holds the voxels of a VoxelSpace in the order of its TerrainLayout. Each voxel is a packed int with the
+ * rendered height in the top 8 bits and the RGB color in the lower 24 bits. Besides the voxels the storage holds the
+ * ground (collision) height of each voxel. Where the ground is the same as the rendered height, which is the case for
+ * terrain loaded from images, there is no separate ground plane and the ground is read from the voxels.
+ *
+ * The voxels are addressed by long indices, so a storage may hold more voxels than an array can. Storage off the heap
+ * keeps large terrains out of the way of the garbage collector.
+ */
+abstract class TerrainStorage {
+    /**
+     * Returns the packed voxel at the given index.
+     * @param index the index in the layout
+     * @return the packed voxel
+     */
+    abstract int get(long index);
+
+    /**
+     * Replaces the packed voxel at the given index.
+     * @param index the index in the layout
+     * @param voxel the packed voxel
+     */
+    abstract void set(long index, int voxel);
+
+    /**
+     * Returns the ground height at the given index.
+     * @param index the index in the layout
+     * @return the ground height, between 0 and 255
+     */
+    abstract int getGround(long index);
+
+    /**
+     * Replaces the ground height at the given index. Storage without a ground plane ignores this, its ground follows
+     * the rendered height.
+     * @param index the index in the layout
+     * @param ground the ground height, between 0 and 255
+     */
+    abstract void setGround(long index, int ground);
+
+    /**
+     * Returns whether the storage has a ground plane of its own or whether the ground is the rendered height.
+     * @return true if there is a separate ground plane
+     */
+    abstract boolean hasGroundPlane();
+
+    /**
+     * Returns whether the storage can't be written to, e.g. a read only mapping of a terrain file.
+     * @return true if set and setGround aren't supported
+     */
+    abstract boolean isReadOnly();
+
+    /**
+     * Creates an empty storage of the same kind, on the heap or off it. A heap storage that would be too large for an
+     * array is created off the heap.
+     * @param voxels the number of voxels
+     * @param groundPlane whether the storage should have a ground plane of its own
+     * @return the storage
+     */
+    abstract TerrainStorage create(long voxels, boolean groundPlane);
+
+    /**
+     * Creates an empty storage.
+     * @param voxels the number of voxels
+     * @param groundPlane whether the storage should have a ground plane of its own
+     * @param offHeap whether the storage should be kept off the heap. Storage that would be too large for an array is
+     *                always kept off the heap
+     * @return the storage
+     */
+    static TerrainStorage allocate(long voxels, boolean groundPlane, boolean offHeap) {
+        if(offHeap || voxels > ArrayTerrainStorage.maxVoxels) return OffHeapTerrainStorage.allocate(voxels, groundPlane);
+        return new ArrayTerrainStorage(new int[(int)voxels], groundPlane ? new byte[(int)voxels] : null);
+    }
+}
@@ -0,0 +1,16 @@
+package org.pixelpop.voxelspace;
+
+/**
+ * A VoxelEdit changes the voxels of a region of a VoxelSpace. It is handed to VoxelSpace.edit and called for each voxel
+ * of the region when the edits are applied.
+ */
+public interface VoxelEdit {
+    /**
+     * Returns the edited voxel.
+     * @param x the x coordinate of the voxel
+     * @param y the y coordinate of the voxel
+     * @param voxel the packed voxel: the rendered height in the top 8 bits and the RGB color in the lower 24 bits
+     * @return the new packed voxel, or the given voxel to leave it as it is
+     */
+    int edit(int x, int y, int voxel);
+}
@@ -1,27 +1,81 @@
 package org.pixelpop.voxelspace;
 
+import java.awt.Graphics;
 import java.awt.image.BufferedImage;
 import java.awt.image.DataBufferInt;
 import java.awt.image.DataBufferUShort;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.IntStream;
 
 import javax.imageio.ImageIO;
 
 /**
  * VoxelSpace represents the model in the Voxel Engine.
- * This class contains the color information, the collision information and the height rendering information. These
- * values are stored in three equally sized arrays which are accessible package wide.
+ * This class contains the color information, the collision information and the height rendering information. The color
+ * and the rendered height of each voxel are packed together into a single int of the terrain array, so that the view
+ * gets both from one memory access. The height is stored in the top 8 bits and the RGB color in the lower 24 bits. The
+ * order in which the voxels are stored is decided by the TerrainLayout. The collision information is the ground height
+ * of each voxel, which is kept in a plane of its own where it differs from the rendered height. The voxels and the
+ * ground are held by a TerrainStorage, either on the heap, off the heap or mapped from a terrain file, and should be
+ * read through sample and getGroundHeight. The storage is addressed by long indices, so a terrain may hold more voxels
+ * than an array can. Terrain of few colors can be compacted to a palette of colors and 2 or 3 bytes per voxel, which
+ * keeps more of it in the caches while it is rendered.
+ *
+ * For distant sampling the VoxelSpace can hold a pyramid of mipmaps, each level half the width and height of the level
+ * below. The color of a mipmap voxel is the average of the four voxels below it and the height is their maximum, so
+ * that silhouettes are never lowered in the distance.
+ *
+ * The terrain can be edited while it is rendered. Edits are queued and applied between frames by applyEdits, which the
+ * view calls before each frame, so a frame never sees half of an edit. A frame holds the read lock of the frameLock
+ * while it is rendered and edits are applied under its write lock; the lock is taken once per frame, never per sample.
+ * The terrain is divided into edit tiles that each have a version, which is bumped when edits to the tile are applied.
+ * Only the mipmaps above the edited tiles are rebuilt.
  *
  * @author Joakim Lundin (joakim.lundin@dynabyte.se)
  */
 public class VoxelSpace {
-    protected int[] colorMap;
-    protected short[] renderHeightMap;
-    protected short[] heightMap;
+    protected TerrainStorage terrain;
+    protected TerrainLayout layout;
     protected final int width;
     protected final int height;
 
+    //The highest rendered voxel height. Used by the view to tell when nothing further away can be visible
+    protected int maxHeight;
+
+    //The mipmap levels above the terrain, level 1 first, and their layouts
+    protected TerrainStorage[] mipmaps = new TerrainStorage[0];
+    protected TerrainLayout[] mipLayouts = new TerrainLayout[0];
+
+    //The number of rows converted at a time when images are loaded
+    private static final int stripHeight = 64;
+
+    //The highest mipmap level that will be built
+    private static final int maxMipLevel = 8;
+
+    //The width and height of the edit tiles are 1 << editTileShift
+    private static final int editTileShift = 6;
+
+    //Held for reading while a frame is rendered and for writing while the terrain is changed
+    final ReadWriteLock frameLock = new ReentrantReadWriteLock();
+
+    //The edits that have been queued but not yet applied. Guarded by itself
+    private final List<PendingEdit> pendingEdits = new ArrayList<>();
+
+    //The version of each edit tile, row by row, and the tiles touched by the edits being applied
+    private final int[] tileVersions;
+    private final boolean[] dirtyTiles;
+    private final int tilesPerRow;
+
+    //Bumped each time edits are applied
+    private volatile int version;
+
     /**
      * Creates a VoxelSpace based on the input stream of a color map resource and a height map resource. VoxelSpace
      * width and height is set from the color map and the height map is expected and required to share the same size
@@ -31,23 +85,63 @@ public class VoxelSpace {
      * @throws IOException
      */
     public VoxelSpace(InputStream colorMapResource, InputStream heightMapResource) throws IOException {
-        //Retrieve color map as an array from the input stream
-        BufferedImage indexedImage = ImageIO.read(colorMapResource);
-        BufferedImage rgbImage = new BufferedImage(indexedImage.getWidth(), indexedImage.getHeight(), BufferedImage.TYPE_INT_RGB);
-        rgbImage.getGraphics().drawImage(indexedImage, 0, 0, null);
-        colorMap = ((DataBufferInt)rgbImage.getRaster().getDataBuffer()).getData();
+        BufferedImage colorImage = ImageIO.read(colorMapResource);
+        BufferedImage heightImage = ImageIO.read(heightMapResource);
+        width = colorImage.getWidth();
+        height = colorImage.getHeight();
+        tilesPerRow = ((width - 1) >> editTileShift) + 1;
+        tileVersions = new int[tilesPerRow * (((height - 1) >> editTileShift) + 1)];
+        dirtyTiles = new boolean[tileVersions.length];
 
-        width = rgbImage.getWidth();
-        height = rgbImage.getHeight();
-        heightMap = new short[width * height];
+        /* The images are converted to RGB and gray scale a strip of rows at a time rather than as a whole, so only a
+        small image is needed for the conversion. The strips are packed as they are converted, the ground is the same
+        as the rendered height */
+        BufferedImage colorStrip = new BufferedImage(width, stripHeight, BufferedImage.TYPE_INT_RGB);
+        BufferedImage heightStrip = new BufferedImage(width, stripHeight, BufferedImage.TYPE_USHORT_GRAY);
+        Graphics colorGraphics = colorStrip.getGraphics();
+        Graphics heightGraphics = heightStrip.getGraphics();
+        int[] colors = ((DataBufferInt)colorStrip.getRaster().getDataBuffer()).getData();
+        short[] heights = ((DataBufferUShort)heightStrip.getRaster().getDataBuffer()).getData();
 
-        //Retrieve the heightmap as an array
-        BufferedImage heightImage = ImageIO.read(heightMapResource);
-        BufferedImage blImage = new BufferedImage(heightImage.getWidth(), heightImage.getHeight(), BufferedImage.TYPE_USHORT_GRAY);
-        blImage.getGraphics().drawImage(heightImage, 0, 0, null);
-        renderHeightMap = ((DataBufferUShort)blImage.getRaster().getDataBuffer()).getData();
+        layout = TerrainLayout.linear(width, height);
+        int[] voxels = new int[width * height];
+        for(int stripY = 0; stripY < height; stripY += stripHeight) {
+            int rows = Math.min(stripHeight, height - stripY);
+            colorGraphics.drawImage(colorImage.getSubimage(0, stripY, width, rows), 0, 0, null);
+            heightGraphics.drawImage(heightImage.getSubimage(0, stripY, width, rows), 0, 0, null);
+
+            for(int y = stripY; y < stripY + rows; y++) {
+                for(int x = 0; x < width; x++) {
+                    int i = x + (y - stripY) * width;
+                    voxels[(int)layout.index(x, y)] = ((heights[i] & 0xFF) << 24) | (colors[i] & 0xFFFFFF);
+                    maxHeight = Math.max(maxHeight, heights[i] & 0xFF);
+                }
+            }
+        }
+        colorGraphics.dispose();
+        heightGraphics.dispose();
+        terrain = new ArrayTerrainStorage(voxels, null);
+
+        buildMipmaps();
+    }
 
-        System.arraycopy(renderHeightMap, 0, heightMap, 0, renderHeightMap.length);
+    /**
+     * Creates a VoxelSpace on top of the given storage, e.g. a terrain file.
+     * @param width the width of the VoxelSpace
+     * @param height the height of the VoxelSpace
+     * @param layout the layout in which the storage holds the voxels
+     * @param terrain the storage
+     * @param maxHeight the highest rendered voxel height
+     */
+    VoxelSpace(int width, int height, TerrainLayout layout, TerrainStorage terrain, int maxHeight) {
+        this.width = width;
+        this.height = height;
+        this.layout = layout;
+        this.terrain = terrain;
+        this.maxHeight = maxHeight;
+        tilesPerRow = ((width - 1) >> editTileShift) + 1;
+        tileVersions = new int[tilesPerRow * (((height - 1) >> editTileShift) + 1)];
+        dirtyTiles = new boolean[tileVersions.length];
     }
 
     /**
@@ -57,63 +151,550 @@ public class VoxelSpace {
      * @param height the height of th VoxelSpace
      */
     public VoxelSpace(int width, int height) {
-        //Set width and height
+        this(width, height, System.nanoTime());
+    }
+
+    /**
+     * Creates a VoxelSpace based on the given width and height values for the VoxelSpace. This constructor will create
+     * a static terrain generated from code, the classic hills of TerrainGenerator. The seed makes the terrain
+     * reproducible; the same seed will always generate the same terrain.
+     * @param width the width of the VoxelSpace
+     * @param height the height of th VoxelSpace
+     * @param seed the seed of the random values used to generate the terrain
+     */
+    public VoxelSpace(int width, int height, long seed) {
+        this(width, height, TerrainGenerator.hills(seed), ForkJoinPool.commonPool(), false);
+    }
+
+    /**
+     * Creates a VoxelSpace generated by the given TerrainGenerator.
+     * @param width the width of the VoxelSpace
+     * @param height the height of th VoxelSpace
+     * @param generator the generator
+     * @param pool the pool to generate the terrain with
+     * @param offHeap whether the terrain should be kept off the heap. Terrain too large for an array always is
+     */
+    VoxelSpace(int width, int height, TerrainGenerator generator, ForkJoinPool pool, boolean offHeap) {
         this.width = width;
         this.height = height;
+        tilesPerRow = ((width - 1) >> editTileShift) + 1;
+        tileVersions = new int[tilesPerRow * (((height - 1) >> editTileShift) + 1)];
+        dirtyTiles = new boolean[tileVersions.length];
+
+        layout = TerrainLayout.linear(width, height);
+        terrain = TerrainStorage.allocate((long)width * height, true, offHeap);
+        maxHeight = generator.generate(layout, width, height, terrain, pool);
+
+        buildMipmaps();
+    }
+
+    /**
+     * Returns the packed voxel at the given coordinate: the rendered height in the top 8 bits and the RGB color in the
+     * lower 24 bits. Coordinates outside the VoxelSpace wrap around.
+     * @param x the x coordinate
+     * @param y the y coordinate
+     * @return the packed voxel
+     */
+    public final int sample(int x, int y) {
+        return terrain.get(layout.index(x, y));
+    }
+
+    /**
+     * Returns the packed voxel of the given mipmap level at the given coordinate. The coordinate is given in voxels of
+     * the terrain itself, i.e. level 0, and wraps around. Level 0 is the terrain. The level must not be higher than
+     * the number of mipmap levels.
+     * @param level the mipmap level
+     * @param x the x coordinate
+     * @param y the y coordinate
+     * @return the packed voxel
+     */
+    public final int sample(int level, int x, int y) {
+        if(level == 0) return terrain.get(layout.index(x, y));
+        return mipmaps[level - 1].get(mipLayouts[level - 1].index(x >> level, y >> level));
+    }
+
+    /**
+     * Returns the number of mipmap levels above the terrain.
+     * @return the number of mipmap levels
+     */
+    public int getMipLevels() {
+        return mipmaps.length;
+    }
+
+    /**
+     * Builds the mipmap pyramid of the terrain. Each level is built from the level below it, and the rows of each level
+     * are built in parallel. Terrain loaded from images or generated from code has its mipmaps built on creation,
+     * mapped terrain files only get them when this is called as it requires reading the whole terrain. The mipmaps are
+     * kept on the heap or off it like the terrain. Frames wait for the mipmaps to be built.
+     */
+    public void buildMipmaps() {
+        int levels = 0;
+        while(levels < maxMipLevel && (width >> (levels + 1)) > 0 && (height >> (levels + 1)) > 0) levels++;
+
+        frameLock.writeLock().lock();
+        try {
+            mipmaps = new TerrainStorage[levels];
+            mipLayouts = new TerrainLayout[levels];
+            for(int level = 1; level <= levels; level++) {
+                int levelWidth = width >> level;
+                int levelHeight = height >> level;
+                mipLayouts[level - 1] = TerrainLayout.of(layout.type, levelWidth, levelHeight,
+                        Math.min(layout.tileSize, Math.min(levelWidth, levelHeight)));
+                mipmaps[level - 1] = terrain.create((long)levelWidth * levelHeight, false);
+
+                int mipLevel = level;
+                IntStream.range(0, levelHeight).parallel().forEach(y -> reduceRow(mipLevel, y, 0, levelWidth));
+            }
+        } finally {
+            frameLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Rebuilds a part of a row of a mipmap level from the level below it.
+     * @param level the mipmap level, 1 or higher
+     * @param y the row within the level
+     * @param from the first x coordinate within the level
+     * @param to the x coordinate within the level to stop at, exclusive
+     */
+    private void reduceRow(int level, int y, int from, int to) {
+        TerrainStorage voxels = mipmaps[level - 1];
+        TerrainLayout levelLayout = mipLayouts[level - 1];
+
+        //The level below, level 0 being the terrain itself
+        TerrainStorage below = level > 1 ? mipmaps[level - 2] : terrain;
+        TerrainLayout belowLayout = level > 1 ? mipLayouts[level - 2] : layout;
+
+        for(int x = from; x < to; x++) {
+            voxels.set(levelLayout.index(x, y), reduce(
+                    below.get(belowLayout.index(x * 2, y * 2)), below.get(belowLayout.index(x * 2 + 1, y * 2)),
+                    below.get(belowLayout.index(x * 2, y * 2 + 1)), below.get(belowLayout.index(x * 2 + 1, y * 2 + 1))));
+        }
+    }
+
+    /**
+     * Reduces four packed voxels to one: the average of their colors and the highest of their heights.
+     * @return the packed voxel
+     */
+    private static int reduce(int a, int b, int c, int d) {
+        int red = ((a >> 16) & 0xFF) + ((b >> 16) & 0xFF) + ((c >> 16) & 0xFF) + ((d >> 16) & 0xFF);
+        int green = ((a >> 8) & 0xFF) + ((b >> 8) & 0xFF) + ((c >> 8) & 0xFF) + ((d >> 8) & 0xFF);
+        int blue = (a & 0xFF) + (b & 0xFF) + (c & 0xFF) + (d & 0xFF);
+        int voxelHeight = Math.max(Math.max(a >>> 24, b >>> 24), Math.max(c >>> 24, d >>> 24));
+        return (voxelHeight << 24) | ((red >> 2) << 16) | ((green >> 2) << 8) | (blue >> 2);
+    }
+
+    /**
+     * Returns the ground height at the given coordinate. This is the height used for collisions, which may differ
+     * from the rendered height. Coordinates outside the VoxelSpace wrap around.
+     * @param x the x coordinate
+     * @param y the y coordinate
+     * @return the ground height, between 0 and 255
+     */
+    public int getGroundHeight(int x, int y) {
+        return terrain.getGround(layout.index(x, y));
+    }
+
+    /**
+     * Returns the ground height at the given position, interpolated between the four nearest voxels. The ground height
+     * of a voxel is found at its integer coordinate, and in between the height is bilinear, so a camera or an entity
+     * moving over the ground glides rather than steps from voxel to voxel. Coordinates outside the VoxelSpace wrap
+     * around. The terrain can't be edited or replaced in the middle of the query, so it may be made from any thread,
+     * e.g. a simulation moving the camera while frames are rendered.
+     * @param x the x coordinate
+     * @param y the y coordinate
+     * @return the interpolated ground height
+     */
+    public double getGroundHeight(double x, double y) {
+        Lock lock = frameLock.readLock();
+        lock.lock();
+        try {
+            return bilinear(x, y, null, 0);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the interpolated ground height at the given position, see getGroundHeight(double, double), and optionally
+     * writes the unit normal of the ground there. Must be called with the frame lock held.
+     * @param normals receives the x, y and z component of the normal, or null if the normal isn't needed
+     * @param normal the index in normals of the x component
+     */
+    private double bilinear(double x, double y, double[] normals, int normal) {
+        int x0 = (int)Math.floor(x);
+        int y0 = (int)Math.floor(y);
+        double fx = x - x0;
+        double fy = y - y0;
+
+        int h00 = getGroundHeight(x0, y0);
+        int h10 = getGroundHeight(x0 + 1, y0);
+        int h01 = getGroundHeight(x0, y0 + 1);
+        int h11 = getGroundHeight(x0 + 1, y0 + 1);
+
+        double top = h00 + (h10 - h00) * fx;
+        double bottom = h01 + (h11 - h01) * fx;
+        if(normals != null) {
+            //The slopes of the bilinear surface at the position, the normal is (-slopeX, -slopeY, 1) normalized
+            double slopeX = (h10 - h00) + ((h11 - h01) - (h10 - h00)) * fy;
+            double slopeY = bottom - top;
+            double length = Math.sqrt(slopeX * slopeX + slopeY * slopeY + 1);
+            normals[normal] = -slopeX / length;
+            normals[normal + 1] = -slopeY / length;
+            normals[normal + 2] = 1 / length;
+        }
+        return top + (bottom - top) * fy;
+    }
+
+    /**
+     * Queries the interpolated ground height, and optionally the normal of the ground, at many positions at once. The
+     * results are written into the given arrays, so a query allocates nothing, and the terrain can't be edited in the
+     * middle of it. Disjoint ranges of the same arrays may be queried from several threads at once, which is how a
+     * large number of positions is spread over the cores.
+     * @param points the positions, an x and a y coordinate for each
+     * @param heights receives the ground height of each position, as by getGroundHeight(double, double)
+     * @param normals receives the unit normal of the ground at each position, an x, y and z component for each. May be
+     *                null if the normals aren't needed
+     * @param offset the index of the first position to query
+     * @param count the number of positions to query
+     */
+    public void getGroundHeights(double[] points, double[] heights, double[] normals, int offset, int count) {
+        Lock lock = frameLock.readLock();
+        lock.lock();
+        try {
+            for(int i = offset; i < offset + count; i++) {
+                heights[i] = bilinear(points[i * 2], points[i * 2 + 1], normals, i * 3);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns whether the straight line between two points clears the ground, e.g. whether an entity can see another.
+     * The line is sampled once per voxel along its longer axis and is blocked where it runs below the interpolated
+     * ground height. Lines that stay above the highest possible ground are never sampled. Coordinates outside the
+     * VoxelSpace wrap around. The terrain can't be edited or replaced in the middle of the test.
+     * @param fromX the x coordinate of the first point
+     * @param fromY the y coordinate of the first point
+     * @param fromZ the height of the first point
+     * @param toX the x coordinate of the second point
+     * @param toY the y coordinate of the second point
+     * @param toZ the height of the second point
+     * @return true if no ground is in the way
+     */
+    public boolean isVisible(double fromX, double fromY, double fromZ, double toX, double toY, double toZ) {
+        Lock lock = frameLock.readLock();
+        lock.lock();
+        try {
+            return clearsGround(fromX, fromY, fromZ, toX, toY, toZ);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns whether a line clears the ground, see isVisible. Must be called with the frame lock held.
+     */
+    private boolean clearsGround(double fromX, double fromY, double fromZ, double toX, double toY, double toZ) {
+        //No ground can reach above 255
+        if(fromZ >= 255 && toZ >= 255) return true;
 
-        //Create VoxelSpace resources
-        colorMap = new int[width * height];
-        renderHeightMap = new short[width * height];
-        heightMap = new short[width * height];
-
-        //Generate some hills
-        addBump(90, 400, 400, 400);
-        addBump(110, 70, 200, 200);
-        addBump(130, 40, 300, 300);
-        addBump(120, 80, 500, 500);
-        addBump(100, 30, 600, 600);
-        addBump(170, 80, 700, 700);
-        addBump(100, 20, 800, 800);
-        addBump(100, 80, 200, 800);
-        addBump(80, 200, 300, 700);
-        addBump(140, 150, 400, 900);
-
-        //Based on the height value map some color; 0 is water, 1-5 is beach, 6 and higher is grass
-        for(int i = 0; i < colorMap.length; i++) {
-            if(renderHeightMap[i] > 5) {
-                //Let the grass grow!
-                if(Math.random() > 0.8) renderHeightMap[i] += (int)(Math.random() * 30);
-                colorMap[i] = (100 + (int) (Math.random() * 50)) << 8;
-            } else if(renderHeightMap[i] > 0) {
-                colorMap[i] = ((100 + (int) (Math.random() * 50)) << 16) + ((100 + (int) (Math.random() * 50)) << 8);
-            } else {
-                colorMap[i] = 100 + (int) (Math.random() * 50);
+        int steps = (int)Math.ceil(Math.max(Math.abs(toX - fromX), Math.abs(toY - fromY)));
+        double stepX = steps > 0 ? (toX - fromX) / steps : 0;
+        double stepY = steps > 0 ? (toY - fromY) / steps : 0;
+        double stepZ = steps > 0 ? (toZ - fromZ) / steps : 0;
+        for(int step = 0; step <= steps; step++) {
+            double z = fromZ + stepZ * step;
+            if(z < bilinear(fromX + stepX * step, fromY + stepY * step, null, 0)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Tests many lines for whether they clear the ground at once, as by isVisible. The results are written into the
+     * given array, so a test allocates nothing, and the terrain can't be edited in the middle of it. Disjoint ranges
+     * of the same arrays may be tested from several threads at once.
+     * @param lines the lines, the x, y and height of the first point followed by those of the second point for each
+     * @param visible receives whether each line clears the ground
+     * @param offset the index of the first line to test
+     * @param count the number of lines to test
+     */
+    public void getVisibility(double[] lines, boolean[] visible, int offset, int count) {
+        Lock lock = frameLock.readLock();
+        lock.lock();
+        try {
+            for(int i = offset; i < offset + count; i++) {
+                int line = i * 6;
+                visible[i] = clearsGround(lines[line], lines[line + 1], lines[line + 2],
+                        lines[line + 3], lines[line + 4], lines[line + 5]);
             }
+        } finally {
+            lock.unlock();
         }
+    }
 
+    /**
+     * Returns the RGB color of the voxel at the given coordinate.
+     * @param x the x coordinate
+     * @param y the y coordinate
+     * @return the color of the voxel
+     */
+    public int getVoxelColor(int x, int y) {
+        return sample(x, y) & 0xFFFFFF;
     }
 
     /**
-     * Creates a hill based on a sin curve. The hill will be placed atop of the existing terrain.
-     *
-     * @param bumpHeight the height of the bump
-     * @param steepness how steep the hill sides should be. The steepness is the radius of the hill. The lower the value
-     *                  is the steeper the hill will be
-     * @param x the x position of where the bump should be placed
-     * @param y the y position of where the bump should be placed
+     * Returns the rendered height of the voxel at the given coordinate.
+     * @param x the x coordinate
+     * @param y the y coordinate
+     * @return the height of the voxel, between 0 and 255
      */
-    private void addBump(int bumpHeight, int steepness, int x, int y) {
-        double maxDistance = steepness;
+    public int getVoxelHeight(int x, int y) {
+        return sample(x, y) >>> 24;
+    }
 
-        for(int i = 0; i < steepness * 2; i++) {
-            for(int j = 0; j < steepness * 2; j++) {
-                double distance = Math.sqrt((i - steepness) * (i - steepness) + (j - steepness) * (j - steepness));
-                if(distance > maxDistance) continue;
-                renderHeightMap[((x - steepness + i) & (width - 1)) + (((y - steepness + j) & (height - 1)) * width)] += (short)((Math.cos((distance * Math.PI)/steepness) + 1) * bumpHeight / 2);
+    /**
+     * Returns the layout in which the terrain is stored.
+     * @return the TerrainLayout
+     */
+    public TerrainLayout getLayout() {
+        return layout;
+    }
+
+    /**
+     * Stores the terrain in the given layout instead. The relaid terrain is kept on the heap or off it like the terrain,
+     * a mapped terrain file is copied off the heap. Frames wait for the terrain to be relaid.
+     * @param layout the new layout, made for the size of this VoxelSpace
+     */
+    public void setLayout(TerrainLayout layout) {
+        if(!layout.fits(width, height))
+            throw new IllegalArgumentException("The layout doesn't fit a " + width + " x " + height + " VoxelSpace");
+
+        frameLock.writeLock().lock();
+        try {
+            relay(layout);
+            if(mipmaps.length > 0) buildMipmaps();
+        } finally {
+            frameLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Copies the terrain into a new storage of the same kind in the given layout.
+     * @param layout the new layout
+     */
+    private void relay(TerrainLayout layout) {
+        boolean groundPlane = terrain.hasGroundPlane();
+        TerrainStorage relaid = terrain.create((long)width * height, groundPlane);
+        for(int y = 0; y < height; y++) {
+            for(int x = 0; x < width; x++) {
+                long index = layout.index(x, y);
+                relaid.set(index, sample(x, y));
+                if(groundPlane) relaid.setGround(index, getGroundHeight(x, y));
             }
         }
+        this.layout = layout;
+        terrain = relaid;
+    }
+
+    /**
+     * Converts the terrain, and its mipmaps, to the compact encoding of PaletteTerrainStorage: an 8 bit height and a
+     * palette index per voxel, plus a ground byte only where the ground differs from the rendered height. Without
+     * quantizing, the colors are kept exactly, which works for terrain of up to 65536 colors. With quantizing, terrain
+     * of more than 256 colors has its colors reduced to 256, which takes 2 bytes per voxel. The colors of the mipmaps
+     * and of later edits are replaced by the nearest colors of the palette. Terrain too large for an array isn't
+     * converted. Frames wait for the terrain to be converted.
+     * @param quantize whether the colors may be reduced to fit a palette of 256 colors
+     * @return true if the terrain was converted
+     */
+    public boolean compact(boolean quantize) {
+        frameLock.writeLock().lock();
+        try {
+            TerrainStorage compacted = PaletteTerrainStorage.convert(terrain, (long)width * height, quantize);
+            if(compacted == null) return false;
+
+            terrain = compacted;
+            if(mipmaps.length > 0) buildMipmaps();
+            return true;
+        } finally {
+            frameLock.writeLock().unlock();
+        }
+    }
 
-        System.arraycopy(renderHeightMap, 0, heightMap, 0, renderHeightMap.length);
+    /**
+     * Queues an edit of a region of the terrain. The edit is called for each voxel of the region when the edits are
+     * applied and the ground height is moved by as much as the edit moves the rendered height, so grass keeps its
+     * length. The region wraps around the edges of the VoxelSpace.
+     * @param left the left edge of the region
+     * @param top the top edge of the region
+     * @param regionWidth the width of the region
+     * @param regionHeight the height of the region
+     * @param edit the edit
+     */
+    public void edit(int left, int top, int regionWidth, int regionHeight, VoxelEdit edit) {
+        synchronized(pendingEdits) {
+            pendingEdits.add(new PendingEdit(left, top, Math.min(regionWidth, width), Math.min(regionHeight, height), edit));
+        }
     }
 
+    /**
+     * Queues a change of a single voxel.
+     * @param x the x coordinate
+     * @param y the y coordinate
+     * @param color the RGB color of the voxel
+     * @param voxelHeight the rendered height of the voxel, between 0 and 255
+     */
+    public void setVoxel(int x, int y, int color, int voxelHeight) {
+        fill(x, y, 1, 1, color, voxelHeight);
+    }
+
+    /**
+     * Queues a change of all voxels of a region to the same color and height, e.g. to flatten it.
+     * @param left the left edge of the region
+     * @param top the top edge of the region
+     * @param regionWidth the width of the region
+     * @param regionHeight the height of the region
+     * @param color the RGB color of the voxels
+     * @param voxelHeight the rendered height of the voxels, between 0 and 255
+     */
+    public void fill(int left, int top, int regionWidth, int regionHeight, int color, int voxelHeight) {
+        int voxel = (clampHeight(voxelHeight) << 24) | (color & 0xFFFFFF);
+        edit(left, top, regionWidth, regionHeight, (x, y, oldVoxel) -> voxel);
+    }
+
+    /**
+     * Queues a round brush that raises the terrain, or lowers it for a negative amount, e.g. to dig a crater. The
+     * change follows a cos curve from the full amount at the center to nothing at the radius, like the hills of
+     * TerrainLayer.bump. The colors are kept.
+     * @param x the x coordinate of the center
+     * @param y the y coordinate of the center
+     * @param radius the radius of the brush
+     * @param amount the height added at the center
+     */
+    public void raise(int x, int y, int radius, int amount) {
+        edit(x - radius, y - radius, radius * 2 + 1, radius * 2 + 1, (voxelX, voxelY, voxel) -> {
+            //The distance to the center, which may be on the other side of an edge
+            int i = ((voxelX - x + radius) & (width - 1)) - radius;
+            int j = ((voxelY - y + radius) & (height - 1)) - radius;
+            double distance = Math.sqrt(i * i + j * j);
+            if(distance > radius) return voxel;
+
+            int change = (int)Math.round((Math.cos((distance * Math.PI) / radius) + 1) * amount / 2);
+            return (clampHeight((voxel >>> 24) + change) << 24) | (voxel & 0xFFFFFF);
+        });
+    }
+
+    /**
+     * Applies the queued edits. Only the mipmaps above the edited tiles are rebuilt, and the version of each edited
+     * tile is bumped. A terrain that is mapped read only from a terrain file is copied off the heap on its first edit.
+     * The highest voxel height is raised by edits but never lowered, it stays an upper bound. Called by the view before
+     * each frame, and waits for frames being rendered by other views.
+     * @return true if there were any edits to apply
+     */
+    public boolean applyEdits() {
+        PendingEdit[] edits;
+        synchronized(pendingEdits) {
+            if(pendingEdits.isEmpty()) return false;
+            edits = pendingEdits.toArray(new PendingEdit[0]);
+            pendingEdits.clear();
+        }
+
+        frameLock.writeLock().lock();
+        try {
+            if(terrain.isReadOnly()) relay(layout);
+
+            for(PendingEdit edit : edits) {
+                for(int j = 0; j < edit.height; j++) {
+                    int y = (edit.top + j) & (height - 1);
+                    for(int i = 0; i < edit.width; i++) {
+                        int x = (edit.left + i) & (width - 1);
+                        long index = layout.index(x, y);
+                        int voxel = terrain.get(index);
+                        int edited = edit.edit.edit(x, y, voxel);
+                        if(edited == voxel) continue;
+
+                        terrain.setGround(index, clampHeight(terrain.getGround(index) + (edited >>> 24) - (voxel >>> 24)));
+                        terrain.set(index, edited);
+                        maxHeight = Math.max(maxHeight, edited >>> 24);
+                        dirtyTiles[(y >> editTileShift) * tilesPerRow + (x >> editTileShift)] = true;
+                    }
+                }
+            }
+
+            for(int tile = 0; tile < dirtyTiles.length; tile++) {
+                if(!dirtyTiles[tile]) continue;
+                dirtyTiles[tile] = false;
+                tileVersions[tile]++;
+
+                //Rebuild the part of each mipmap level that lies above the tile
+                int left = (tile % tilesPerRow) << editTileShift;
+                int top = (tile / tilesPerRow) << editTileShift;
+                int right = Math.min(left + (1 << editTileShift), width);
+                int bottom = Math.min(top + (1 << editTileShift), height);
+                for(int level = 1; level <= mipmaps.length; level++) {
+                    int levelRight = (right + (1 << level) - 1) >> level;
+                    int levelBottom = (bottom + (1 << level) - 1) >> level;
+                    for(int y = top >> level; y < levelBottom; y++) reduceRow(level, y, left >> level, levelRight);
+                }
+            }
+            version++;
+        } finally {
+            frameLock.writeLock().unlock();
+        }
+        return true;
+    }
+
+    /**
+     * Returns the width and height of the edit tiles.
+     * @return the edit tile size
+     */
+    public int getEditTileSize() {
+        return 1 << editTileShift;
+    }
+
+    /**
+     * Returns the version of the edit tile at the given coordinate, which is bumped each time edits to the tile are
+     * applied. Coordinates outside the VoxelSpace wrap around.
+     * @param x the x coordinate of any voxel within the tile
+     * @param y the y coordinate of any voxel within the tile
+     * @return the version of the tile
+     */
+    public int getTileVersion(int x, int y) {
+        return tileVersions[((y & (height - 1)) >> editTileShift) * tilesPerRow + ((x & (width - 1)) >> editTileShift)];
+    }
+
+    /**
+     * Returns the version of the terrain, which is bumped each time edits are applied.
+     * @return the version of the terrain
+     */
+    public int getVersion() {
+        return version;
+    }
+
+    /**
+     * Clamps a height to what a voxel can hold.
+     */
+    private static int clampHeight(int voxelHeight) {
+        return Math.max(0, Math.min(255, voxelHeight));
+    }
+
+    /**
+     * An edit waiting to be applied and the region it applies to.
+     */
+    private static class PendingEdit {
+        final int left;
+        final int top;
+        final int width;
+        final int height;
+        final VoxelEdit edit;
+
+        PendingEdit(int left, int top, int width, int height, VoxelEdit edit) {
+            this.left = left;
+            this.top = top;
+            this.width = width;
+            this.height = height;
+            this.edit = edit;
+        }
+    }
 }
@@ -1,5 +1,11 @@
 package org.pixelpop.voxelspace;
 
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Lock;
+
 /**
  * VoxelView is the view of the Voxel Space Engine and provides an RGB image representation of the current frame.
  * The class must have a reference to an instance of VoxelSpace which acts as the model that the VoxelView is presenting.
@@ -13,39 +19,104 @@ public class VoxelView {
     //The "model"
     private VoxelSpace voxelSpace;
 
-    //The image resources used to reference, clear and update the view
-    private final int[][] clearRaster;
-    private final int[][] imageRaster;
-    private final int[] image;
+    /* The image that the view is rendered into, stored row by row in a flat array. The image is either owned by the
+    view or is a render target supplied through setRenderTarget */
+    private int[] image;
 
     //Properties for the image representation.
     private final int width;
     private final int height;
 
-    //"Camera" properties
-    private double positionX;
-    private double positionY;
-    private double positionZ;
-    private double rotationZ;
+    /* "Camera" properties. The position and rotation are held by an immutable Camera, which is replaced as a whole
+    when the view is moved or rotated. Each frame takes the camera once, so all columns of a frame are rendered from
+    the same camera however the view is moved in the meantime, e.g. by input from another thread */
+    private final AtomicReference<Camera> camera;
     private double rotationX;
     private int viewDepth;
     private double fieldOfView;
+    private double projectionScale;
     private double hover;
 
-    //This values will be precalculated in the constructor to take load from the view update
-    private final double[] rayLengths;
-    private final double[] depthSteps;
-    private final double[] xAdjustments;
-
-    //The renderers used by the rendering threads
-    private Runnable[] renderers;
-    private Thread[] renderThreads;
+    /* Level of detail properties. Beyond the lodDistance the step size of the rays grows by stepGrowth per unit. With
+    mipmapping the terrain is sampled from the mipmap level that matches the distance between the samples */
+    private double lodDistance;
+    private double stepGrowth;
+    private boolean mipmapping;
+
+    /* These values are precalculated to take load from the view update. They are shared with other views of the same
+    resolution, field of view and level of detail. The tables of the frame being rendered are kept apart, so that the
+    settings can be changed while a frame is rendered */
+    private ProjectionTables tables;
+    private ProjectionTables frameTables;
+
+    //The ray marcher and the mipmapping of the frame being rendered are kept apart in the same way as the tables
+    private RayMarcher rayMarcher;
+    private RayMarcher frameRayMarcher;
+    private boolean frameMipmapping;
+
+    /* The state of each column while it is marched in a batch: the unit step of its ray in fixed point, the highest
+    painted pixel and, once the column is done, the number of samples it took (-1 until then). A column is only touched
+    by its chunk */
+    private final long[] columnStepsX;
+    private final long[] columnStepsY;
+    private final int[] columnPainted;
+    private final int[] columnSamples;
+
+    //The pool of threads that traces the image and the task that is handed to it every frame
+    private final RenderPool renderPool;
+    private final RenderPool.ChunkTask renderer;
+    private final int numberOfChunks;
+
+    /* Frame reuse, see FrameCache. The cache is only kept while frame reuse is on. The cache of the current frame and
+    the number of columns that it traces are kept apart, so that frame reuse can be turned off while a frame is rendered */
+    private FrameCache frameCache;
+    private double reuseTolerance;
+    private FrameCache frameReuse;
+    private int tracedColumns;
+
+    //The number of terrain samples taken by each chunk of the last frame and the stats they are recorded into, if any
+    private final int[] chunkSamples;
+    private RenderStats renderStats;
+
+    //The camera of the current frame and its rotation. The rotation is calculated once per frame rather than per column
+    private Camera frameCamera;
+    private double frameSin;
+    private double frameCos;
+
+    //The position of the current frame in 16.16 fixed point, used by the fixed point ray marcher
+    private long frameX;
+    private long frameY;
+    private long frameZ;
 
     //Used as a member variable to avoid redundant calculations. The horizont is used
     private int horizonHeight;
 
-    //The number of threads that will be used to trace the image
-    private static final int numberOfThreads = 4;
+    //The number of neighbouring columns that make up one unit of work for the render threads
+    private static final int columnsPerChunk = 16;
+
+    //The number of neighbouring columns that the batched ray marcher steps together
+    private static final int columnsPerBatch = 16;
+
+    /* The distance to the projection plane. This sets the field of view together with the xAdjustments and is kept
+    apart from the view depth so that the view can reach further without narrowing */
+    static final double focalLength = 400;
+
+    //The distance between each update of the shadow factor
+    static final int shadowBand = 20;
+
+    //The number of fractional bits of fixed point values and the fixed point representation of 1
+    static final int fixedShift = 16;
+    static final double fixedOne = 1 << fixedShift;
+
+    /**
+     * Instantiates a VoxelView which is rendered by the application wide RenderPool.
+     * @param voxelSpace the VoxelSpace - the model that the view will be presenting
+     * @param width the width of the view screen
+     * @param height the height of the view screen
+     */
+    public VoxelView(VoxelSpace voxelSpace, int width, int height) {
+        this(voxelSpace, width, height, RenderPool.getDefault());
+    }
 
     /**
      * Instantiates a VoxelView. The constructor will also make a series of precalculated values used during update of
@@ -53,169 +124,443 @@ public class VoxelView {
      * @param voxelSpace the VoxelSpace - the model that the view will be presenting
      * @param width the width of the view screen
      * @param height the height of the view screen
+     * @param renderPool the pool of threads that will trace the view
      */
-    public VoxelView(VoxelSpace voxelSpace, int width, int height) {
+    public VoxelView(VoxelSpace voxelSpace, int width, int height, RenderPool renderPool) {
         //Assigning key values and resources
         this.voxelSpace = voxelSpace;
         this.width = width;
         this.height = height;
+        this.renderPool = renderPool;
 
         //Creating image resources
-        clearRaster = new int[width][height];
-        imageRaster = new int[width][height];
         image = new int[width * height];
 
         //Setting view properties
         fieldOfView = 1.2;
-        viewDepth = 400;
-        positionX = 512;
-        positionY = 800;
-        positionZ = 300;
+        projectionScale = 100;
+        camera = new AtomicReference<>(new Camera(512, 800, 300, 0, fieldOfView, width, height));
         rotationX = 0;
-        rotationZ = 0;
         hover = 100;
+        reuseTolerance = .5;
 
-        //Creating value stores for pre-calculated values
-        xAdjustments = new double[width];
-        rayLengths = new double[width];
-        depthSteps = new double[width];
+        //Creating value stores for the batched ray marcher
+        columnStepsX = new long[width];
+        columnStepsY = new long[width];
+        columnPainted = new int[width];
+        columnSamples = new int[width];
 
-        //Pre-calculating values for each raster column
-        for(int i = 0; i < width; i++) {
-            xAdjustments[i] = ((i - (width / 2)) * fieldOfView);
-            rayLengths[i] = Math.sqrt(xAdjustments[i] * xAdjustments[i] + viewDepth * viewDepth);
-            depthSteps[i] = viewDepth / rayLengths[i];
-        }
+        //Pre-calculating values for each raster column, see ProjectionTables
+        rayMarcher = RayMarcher.FLOATING_POINT;
+        setQuality(Quality.EXACT);
 
         //Setting the horizon height which will be used during perspective calculations
         horizonHeight = height / 2;
 
-        //Setting the background image. In this case a sky is created in a "crude" way
-        for(int i = 0; i < clearRaster.length; i++) {
-            for(int j = 0; j < clearRaster[i].length; j++) {
-                int skyColor = (50 << 16) + (50 << 8) + 150;
-
-                if(j < horizonHeight * 1.5) {
-                    int whiteFactor = 100 * (j * j) / (horizonHeight * horizonHeight);
-                    int whiteAddition = (whiteFactor << 16) + (whiteFactor << 8);
-                    skyColor += whiteAddition;
+        /* Creating the renderer. The renderer is an anonymous implementation of ChunkTask which ray traces a chunk of
+        neighbouring raster columns. The last chunk picks up the leftover columns when the width isn't evenly divisible */
+        numberOfChunks = (width + columnsPerChunk - 1) / columnsPerChunk;
+        chunkSamples = new int[numberOfChunks];
+        renderer = new RenderPool.ChunkTask() {
+            @Override
+            public void render(int chunk) {
+                int firstColumn = chunk * columnsPerChunk;
+                int lastColumn = Math.min(firstColumn + columnsPerChunk, VoxelView.this.width);
+                int samples = 0;
+                FrameCache frameReuse = VoxelView.this.frameReuse;
+                if(frameRayMarcher == RayMarcher.BATCHED) {
+                    //Batch the runs of neighbouring columns that are traced, the reused columns are already painted
+                    for(int i = firstColumn; i < lastColumn;) {
+                        if(frameReuse != null && frameReuse.isReused(i)) {
+                            i++;
+                            continue;
+                        }
+                        int end = i + 1;
+                        while(end < lastColumn && end - i < columnsPerBatch
+                                && (frameReuse == null || !frameReuse.isReused(end))) end++;
+                        samples += traceBatch(i, end);
+                        i = end;
+                    }
+                    chunkSamples[chunk] = samples;
+                    return;
                 }
 
-                clearRaster[i][j] = skyColor;
-            }
-        }
+                double[] xAdjustments = frameTables.xAdjustments;
+                for(int i = firstColumn; i < lastColumn; i++) {
+                    if(frameReuse != null && frameReuse.isReused(i)) continue;
 
-        /* Creating the renderers. The renderer is an anonymous implementation of Runnable which is assigned a raster
-        column interval in which it will ray trace */
-        renderers = new Runnable[numberOfThreads];
-        for(int i = 0; i < renderers.length; i++) {
-            int rendererNumber = i;
-            int rasterSize = width / renderers.length;
-            renderers[i] = new Runnable() {
-                private int adjustment = rasterSize * (rendererNumber);
-                @Override
-                public void run() {
-                    for(int i = 0; i < rasterSize; i++) {
-                        double rayPositionX = ((Math.sin(rotationZ) * viewDepth) + (Math.cos(rotationZ) * xAdjustments[adjustment + i]));
-                        double rayPositionY = ((Math.cos(rotationZ) * viewDepth) - (Math.sin(rotationZ) * xAdjustments[adjustment + i]));
-
-                        traceRay(adjustment + i, rayPositionX, rayPositionY);
-                    }
+                    double rayPositionX = ((frameSin * focalLength) + (frameCos * xAdjustments[i]));
+                    double rayPositionY = ((frameCos * focalLength) - (frameSin * xAdjustments[i]));
+
+                    if(frameRayMarcher == RayMarcher.FIXED_POINT) samples += traceRayFixed(i, rayPositionX, rayPositionY);
+                    else samples += traceRay(i, rayPositionX, rayPositionY);
                 }
-            };
-        }
-        //This doesn't really save a lot of time - but while I'm at it...
-        renderThreads = new Thread[renderers.length];
+                chunkSamples[chunk] = samples;
+            }
+        };
     }
 
     /**
-     * Updates the view screen according to the properties of the camera. The update method will spawn a number of
-     * threads (depending on the member variable "numberOfThreads". The threads will each trace the VoxelSpace for their
-     * assigned column interval. When the threads are all finshed the result will be compiled into an RGB image
-     * represented in an integer array.
+     * Updates the view screen according to the properties of the camera. The columns of the view are handed to the
+     * RenderPool in chunks which are traced in parallel straight into the RGB image. With frame reuse only the columns
+     * that can't be copied from the last frame are traced, and a frame that can be copied as a whole isn't handed to
+     * the RenderPool at all.
      *
      * @throws InterruptedException
      */
     public void update() throws InterruptedException {
-        //Replace the view image with the background image
-        for(int i = 0; i < imageRaster.length; i++) {
-            System.arraycopy(clearRaster[i], 0, imageRaster[i], 0, clearRaster[i].length);
+        RenderStats renderStats = this.renderStats;
+        long start = renderStats != null ? System.nanoTime() : 0;
+        long cleared;
+
+        //Apply the terrain edits made since the last frame. The terrain can't change while the frame is rendered
+        voxelSpace.applyEdits();
+        Lock frameLock = voxelSpace.frameLock.readLock();
+        frameLock.lock();
+        try {
+            //Replace the view image with the background image, or with what can be reused of the last frame
+            prepareFrame();
+            cleared = renderStats != null ? System.nanoTime() : 0;
+
+            //Trace the columns on the render pool
+            if(tracedColumns > 0) renderPool.execute(numberOfChunks, renderer);
+            if(frameReuse != null) frameReuse.store(image);
+        } finally {
+            frameLock.unlock();
         }
 
-        //Create new Threads for each renderer
-        for(int i = 0; i < renderers.length; i++) {
-            renderThreads[i] = new Thread(renderers[i]);
-            renderThreads[i].start();
-        }
+        if(renderStats != null) {
+            long traced = System.nanoTime();
+            long samples = 0;
+            for(int chunkSample : chunkSamples) samples += chunkSample;
 
-        //Wait for all threads to finish
-        for(Thread thread : renderThreads) {
-            thread.join();
+            renderStats.recordStage(RenderStats.Stage.CLEAR, cleared - start);
+            renderStats.recordStage(RenderStats.Stage.TRACE, traced - cleared);
+            renderStats.recordFrame(traced - start);
+            renderStats.recordRays(tracedColumns, samples);
         }
+    }
 
-        //Compile final array represented images
-        for(int i = 0; i < width * height; i++) {
-            image[i] = imageRaster[i % width][i / width];
+    /**
+     * Prepares the next frame: the camera and the tables that the frame is rendered with are fixed and the image is
+     * replaced with the background image, or with the columns reused from the last frame. After this the chunks of the
+     * frame can be rendered. Must be called with the frame lock of the VoxelSpace held.
+     */
+    void prepareFrame() {
+        frameTables = tables;
+        frameRayMarcher = rayMarcher;
+        frameMipmapping = mipmapping;
+
+        Camera camera = this.camera.get();
+        frameCamera = camera;
+        frameSin = Math.sin(camera.getRotation());
+        frameCos = Math.cos(camera.getRotation());
+        frameX = (long)(camera.getPositionX() * fixedOne);
+        frameY = (long)(camera.getPositionY() * fixedOne);
+        frameZ = (long)(camera.getPositionZ() * fixedOne);
+
+        frameReuse = frameCache;
+        if(frameReuse != null) {
+            tracedColumns = frameReuse.plan(voxelSpace, camera, frameTables, frameRayMarcher, frameMipmapping,
+                    reuseTolerance);
+            frameReuse.compose(image, frameTables.clearImage);
+        } else {
+            tracedColumns = width;
+            System.arraycopy(frameTables.clearImage, 0, image, 0, image.length);
         }
+
+        //A frame that traces no columns takes no samples, the chunks aren't rendered to reset their counts
+        if(tracedColumns == 0) Arrays.fill(chunkSamples, 0);
+    }
+
+    /**
+     * Returns the number of chunks the columns of a frame are divided into.
+     * @return the number of chunks
+     */
+    int getNumberOfChunks() {
+        return numberOfChunks;
+    }
+
+    /**
+     * Returns the task that renders a chunk of a prepared frame.
+     * @return the ChunkTask of the view
+     */
+    RenderPool.ChunkTask getRenderer() {
+        return renderer;
     }
 
     /**
-     * Traces a ray on the VoxelSpace for the given column in the image raster and to the given X, Y coordinates. This
+     * Traces a ray on the VoxelSpace for the given column in the image raster and in the given X, Y direction. This
      * is "where the magic happens". Each ray traces and paints a column in the image raster. The ray originates from
-     * the X, Y coordinates for the VoxelView and paints each pixel progressively towards the given X, Y parameters.
+     * the X, Y coordinates for the VoxelView and paints each pixel progressively towards the view depth.
      * The column number helps reference the pre-calculated values.
      *
+     * The ray is stepped one unit at a time up to the level of detail distance, after which the steps grow with the
+     * distance. The tracing stops as soon as nothing further away can show up in the column.
+     *
      * @param columnNo the column in the image raster that the ray tracing is executed for
-     * @param rayPositionX the xPosition of the end of the ray
-     * @param rayPositionY the yPosition of the end of the ray
+     * @param rayPositionX the x direction of the ray, one focal length from the origin
+     * @param rayPositionY the y direction of the ray, one focal length from the origin
+     * @return the number of terrain samples taken
      */
-    private void traceRay(int columnNo, double rayPositionX, double rayPositionY) {
+    private int traceRay(int columnNo, double rayPositionX, double rayPositionY) {
         //Setting the origin for the ray tracing
-        double pixelPositionX = positionX;
-        double pixelPositionY = positionY;
+        Camera camera = frameCamera;
+        double pixelPositionX = camera.getPositionX();
+        double pixelPositionY = camera.getPositionY();
+        double positionZ = camera.getPositionZ();
+
+        //Calculating the distance in the X and the Y direction each unit step will move the ray
+        ProjectionTables tables = frameTables;
+        double xStep = rayPositionX / tables.rayUnits[columnNo];
+        double yStep = rayPositionY / tables.rayUnits[columnNo];
+
+        double rayLength = tables.rayLengths[columnNo];
+        double depthStep = tables.depthSteps[columnNo];
 
-        //Calculating the distance in the X and the Y direction each step will move the ray
-        double xStep = rayPositionX / rayLengths[columnNo];
-        double yStep = rayPositionY / rayLengths[columnNo];
+        //The highest voxel any terrain can reach relative to the view. Used to find out when the column is occluded
+        double heightBound = voxelSpace.maxHeight - positionZ;
+
+        //The highest mipmap level that may be sampled, none without mipmapping
+        int maxLevel = frameMipmapping ? voxelSpace.getMipLevels() : 0;
 
         //The highest pointed in the raster which is painted. Anything lower than this will be ignored
         int painted = 0;
 
         //To make pixels further away to appear darker their color will be multiplied with the shadowFactor
         double shadowFactor = 1;
+        double nextShadow = shadowBand;
 
         //This is where we step through the pixels of the terrain image
-        for(int i = 1; i < rayLengths[columnNo]; i++) {
+        int samples = 0;
+        double stepSize = 1;
+        for(double distance = 1; distance < rayLength; distance += stepSize) {
             //We decrease the shadow factor based on the distance we have traced
-            if(i % 20 == 0) shadowFactor = (rayLengths[columnNo] - i) / rayLengths[columnNo];
+            if(distance >= nextShadow) {
+                double shadowDistance = distance - distance % shadowBand;
+                shadowFactor = (rayLength - shadowDistance) / rayLength;
+                nextShadow = shadowDistance + shadowBand;
+
+                /* Stop when even the highest possible voxel from here on would end up below what has been painted.
+                When the view is above all terrain the voxels can never reach above the horizon */
+                if(heightBound > 0 ? (int)(horizonHeight + heightBound / (depthStep * distance) * tables.projectionScale) <= painted
+                        : painted >= horizonHeight) break;
+            }
 
             //Increasing the X, Y coordinate with each step
-            pixelPositionX += xStep;
-            pixelPositionY += yStep;
+            pixelPositionX += xStep * stepSize;
+            pixelPositionY += yStep * stepSize;
 
-            //Retrieve the Voxel color from the color map of the VoxelSpace for the current coordinate
-            int voxelColor = voxelSpace.colorMap[(((int)pixelPositionX) & (voxelSpace.width - 1)) + ((((int)pixelPositionY) & (voxelSpace.height - 1)) * voxelSpace.width)];
+            //Retrieve the Voxel, packed height and color, from the VoxelSpace for the current coordinate
+            int level = maxLevel == 0 ? 0 : Math.min(tables.mipLevel(stepSize, distance), maxLevel);
+            int voxel = voxelSpace.sample(level, (int)pixelPositionX, (int)pixelPositionY);
+            samples++;
 
             //We "filter" the color making it appear darker the further away it is
-            voxelColor = filterColor(voxelColor, shadowFactor);
+            int voxelColor = filterColor(voxel & 0xFFFFFF, shadowFactor);
 
             /* Retrieving the voxel height value and subtracting the VoxelView Z position (height) as it has bearing on
             how height the voxel will appear */
-            double voxelHeight = (voxelSpace.renderHeightMap[(((int) pixelPositionX) & (voxelSpace.width - 1)) + ((((int) pixelPositionY) & (voxelSpace.height - 1)) * voxelSpace.width)] & 0xFF ) - positionZ;
+            double voxelHeight = (voxel >>> 24) - positionZ;
 
-            //Setting the absolute height on the image raster by calculating the perspective
-            int absoluteHeight = (int)(horizonHeight + voxelHeight / (depthSteps[columnNo] * i) * 100);
+            //Setting the absolute height on the image raster by calculating the perspective. It can't reach above the raster
+            int absoluteHeight = Math.min((int)(horizonHeight + voxelHeight / (depthStep * distance) * tables.projectionScale), height);
 
             //Paint pixels in the raster based to the height the voxel will reach
             for(int k = painted; k < absoluteHeight; k++) {
-                //Set the color value in the raster
-                imageRaster[columnNo][height - k - 1] = voxelColor;
+                //Set the color value in the raster. The image is stored upside down in relation to k
+                image[(height - k - 1) * width + columnNo] = voxelColor;
 
                 //Increase the painted voxel value. No point into painting anything lower than this
                 painted = k;
             }
 
+            //The column is filled to the top
+            if(painted == height - 1) break;
+
+            //Grow the step size for the next step once we are beyond the level of detail distance
+            if(distance > lodDistance) stepSize = 1 + (distance - lodDistance) * stepGrowth;
+        }
+        return samples;
+    }
+
+    /**
+     * Traces a ray the same way as traceRay but in fixed point arithmetic. The steps of the ray are taken from the
+     * precalculated sample tables, so the inner loop only consists of integer multiplications, shifts and lookups.
+     * The color of a voxel is only shaded when the voxel turns out to be visible.
+     *
+     * @param columnNo the column in the image raster that the ray tracing is executed for
+     * @param rayPositionX the x direction of the ray, one focal length from the origin
+     * @param rayPositionY the y direction of the ray, one focal length from the origin
+     * @return the number of terrain samples taken
+     */
+    private int traceRayFixed(int columnNo, double rayPositionX, double rayPositionY) {
+        //Local copies of everything used in the loop
+        VoxelSpace voxelSpace = this.voxelSpace;
+        ProjectionTables tables = frameTables;
+        int[] distances = tables.sampleDistances;
+        int[] projections = tables.sampleProjections;
+        int[] shadowDistances = tables.sampleShadowDistances;
+        byte[] levels = tables.sampleLevels;
+        int maxLevel = frameMipmapping ? voxelSpace.getMipLevels() : 0;
+        int[] image = this.image;
+        long originX = frameX;
+        long originY = frameY;
+        long viewZ = frameZ;
+
+        //The unit step of the ray in fixed point
+        long xStep = (long)(rayPositionX / tables.rayUnits[columnNo] * fixedOne);
+        long yStep = (long)(rayPositionY / tables.rayUnits[columnNo] * fixedOne);
+
+        int samples = tables.sampleCounts[columnNo];
+        long columnScale = tables.columnScales[columnNo];
+        int fogScale = tables.columnFogScales[columnNo];
+
+        //The highest voxel any terrain can reach relative to the view, in fixed point
+        long heightBound = ((long)voxelSpace.maxHeight << fixedShift) - viewZ;
+
+        //The highest pointed in the raster which is painted. Anything lower than this will be ignored
+        int painted = 0;
+
+        for(int i = 0; i < samples; i++) {
+            long pixelPositionX = originX + ((xStep * distances[i]) >> fixedShift);
+            long pixelPositionY = originY + ((yStep * distances[i]) >> fixedShift);
+            int voxel = voxelSpace.sample(Math.min(levels[i], maxLevel), (int)(pixelPositionX >> fixedShift), (int)(pixelPositionY >> fixedShift));
+
+            //The perspective projection of this step for this column
+            long scale = (projections[i] * columnScale) >> fixedShift;
+
+            //Project the voxel height relative to the view onto the raster
+            long voxelHeight = ((long)(voxel >>> 24) << fixedShift) - viewZ;
+            int absoluteHeight = horizonHeight + (int)((voxelHeight * scale) >> (fixedShift * 2));
+
+            if(absoluteHeight > painted) {
+                if(absoluteHeight > height) absoluteHeight = height;
+
+                //Shade the voxel by the fog level of its shadow band
+                int voxelColor = ShadeTable.shade(voxel, 255 - ((shadowDistances[i] * fogScale) >> fixedShift));
+
+                for(int k = painted; k < absoluteHeight; k++) {
+                    image[(height - k - 1) * width + columnNo] = voxelColor;
+                }
+                painted = absoluteHeight - 1;
+
+                //The column is filled to the top
+                if(painted == height - 1) return i + 1;
+            }
+
+            //Every now and then check whether anything further away can still show up, see traceRay
+            if((i & 15) == 15 && (heightBound > 0
+                    ? horizonHeight + (int)((heightBound * scale) >> (fixedShift * 2)) <= painted
+                    : painted >= horizonHeight)) return i + 1;
         }
+        return samples;
+    }
+
+    /**
+     * Traces the rays of a batch of neighbouring columns together, in the same fixed point arithmetic as traceRayFixed
+     * and with the same result. The rays of neighbouring columns are nearly parallel and share the sample tables, so
+     * the batch takes one sample of every column for each entry of the tables before moving on to the next entry. The
+     * table entries are read once per batch rather than once per column, and the columns sample neighbouring voxels at
+     * the same time, which keeps the terrain they read in cache. The state of each column is kept in arrays, one column
+     * per lane, and a column that is done is skipped until the whole batch is done.
+     *
+     * @param firstColumn the first column of the batch
+     * @param endColumn the column after the last column of the batch
+     * @return the number of terrain samples taken by the batch
+     */
+    private int traceBatch(int firstColumn, int endColumn) {
+        //Local copies of everything used in the loop
+        VoxelSpace voxelSpace = this.voxelSpace;
+        ProjectionTables tables = frameTables;
+        int[] distances = tables.sampleDistances;
+        int[] projections = tables.sampleProjections;
+        int[] shadowDistances = tables.sampleShadowDistances;
+        byte[] levels = tables.sampleLevels;
+        int[] sampleCounts = tables.sampleCounts;
+        int[] columnScales = tables.columnScales;
+        int[] columnFogScales = tables.columnFogScales;
+        int maxLevel = frameMipmapping ? voxelSpace.getMipLevels() : 0;
+        int[] image = this.image;
+        long[] stepsX = columnStepsX;
+        long[] stepsY = columnStepsY;
+        int[] painted = columnPainted;
+        int[] columnSamples = this.columnSamples;
+        long originX = frameX;
+        long originY = frameY;
+        long viewZ = frameZ;
+        long heightBound = ((long)voxelSpace.maxHeight << fixedShift) - viewZ;
+
+        //Set up the lanes. The batch runs until the longest ray of the batch is done
+        int samples = 0;
+        for(int column = firstColumn; column < endColumn; column++) {
+            double rayPositionX = ((frameSin * focalLength) + (frameCos * tables.xAdjustments[column]));
+            double rayPositionY = ((frameCos * focalLength) - (frameSin * tables.xAdjustments[column]));
+            stepsX[column] = (long)(rayPositionX / tables.rayUnits[column] * fixedOne);
+            stepsY[column] = (long)(rayPositionY / tables.rayUnits[column] * fixedOne);
+            painted[column] = 0;
+            columnSamples[column] = -1;
+            samples = Math.max(samples, sampleCounts[column]);
+        }
+
+        int remaining = endColumn - firstColumn;
+        for(int i = 0; i < samples && remaining > 0; i++) {
+            int distance = distances[i];
+            int projection = projections[i];
+            int level = Math.min(levels[i], maxLevel);
+            int shadowDistance = shadowDistances[i];
+            boolean checkOcclusion = (i & 15) == 15;
+
+            for(int column = firstColumn; column < endColumn; column++) {
+                //Skip the lanes that are done, and mark the ones that have run out of samples
+                if(columnSamples[column] >= 0) continue;
+                if(i >= sampleCounts[column]) {
+                    columnSamples[column] = i;
+                    remaining--;
+                    continue;
+                }
+
+                long pixelPositionX = originX + ((stepsX[column] * distance) >> fixedShift);
+                long pixelPositionY = originY + ((stepsY[column] * distance) >> fixedShift);
+                int voxel = voxelSpace.sample(level, (int)(pixelPositionX >> fixedShift), (int)(pixelPositionY >> fixedShift));
+
+                long scale = (projection * (long)columnScales[column]) >> fixedShift;
+                long voxelHeight = ((long)(voxel >>> 24) << fixedShift) - viewZ;
+                int absoluteHeight = horizonHeight + (int)((voxelHeight * scale) >> (fixedShift * 2));
+
+                int columnPainted = painted[column];
+                if(absoluteHeight > columnPainted) {
+                    if(absoluteHeight > height) absoluteHeight = height;
+
+                    int voxelColor = ShadeTable.shade(voxel, 255 - ((shadowDistance * columnFogScales[column]) >> fixedShift));
+                    for(int k = columnPainted; k < absoluteHeight; k++) {
+                        image[(height - k - 1) * width + column] = voxelColor;
+                    }
+                    columnPainted = absoluteHeight - 1;
+                    painted[column] = columnPainted;
+
+                    if(columnPainted == height - 1) {
+                        columnSamples[column] = i + 1;
+                        remaining--;
+                        continue;
+                    }
+                }
+
+                if(checkOcclusion && (heightBound > 0
+                        ? horizonHeight + (int)((heightBound * scale) >> (fixedShift * 2)) <= columnPainted
+                        : columnPainted >= horizonHeight)) {
+                    columnSamples[column] = i + 1;
+                    remaining--;
+                }
+            }
+        }
+
+        //Lanes that were still going when the batch ran out of samples took all of theirs
+        int taken = 0;
+        for(int column = firstColumn; column < endColumn; column++) {
+            taken += columnSamples[column] >= 0 ? columnSamples[column] : sampleCounts[column];
+        }
+        return taken;
     }
 
     /**
@@ -236,30 +581,201 @@ public class VoxelView {
     }
 
     /**
-     * Returns the an int RGB array representation of the VoxelView
+     * Returns the an int RGB array representation of the VoxelView. If a render target has been set this is the array
+     * of the render target.
      * @return the RGB array
      */
     public int[] getImage() {
         return image;
     }
 
+    /**
+     * Makes the view render straight into the given array rather than into an array of its own. The array is expected
+     * to be an RGB image stored row by row, of the same width and height as the view.
+     * @param target the array that the view should render into
+     */
+    public void setRenderTarget(int[] target) {
+        if(target.length != width * height)
+            throw new IllegalArgumentException("The render target must be " + width + " x " + height + " pixels");
+
+        image = target;
+    }
+
+    /**
+     * Makes the view render straight into the pixel data of the given image. This removes the need for copying the
+     * view into the image after each update. The image must be of type TYPE_INT_RGB and of the same width and height
+     * as the view.
+     * @param target the image that the view should render into
+     */
+    public void setRenderTarget(BufferedImage target) {
+        if(target.getType() != BufferedImage.TYPE_INT_RGB || target.getWidth() != width || target.getHeight() != height)
+            throw new IllegalArgumentException("The render target must be a " + width + " x " + height + " TYPE_INT_RGB image");
+
+        setRenderTarget(((DataBufferInt)target.getRaster().getDataBuffer()).getData());
+    }
+
+    /**
+     * Sets the stats that the frames of the view are recorded into, or null to stop recording. The view records the
+     * clear and trace stages, the frame time, the samples per ray and the render threads of its pool.
+     * @param renderStats the stats
+     */
+    public void setRenderStats(RenderStats renderStats) {
+        if(renderStats != null) renderStats.setRenderPool(renderPool);
+        this.renderStats = renderStats;
+    }
+
+    /**
+     * Sets the ray marcher that the columns of the view are traced with.
+     * @param rayMarcher the ray marcher
+     */
+    public void setRayMarcher(RayMarcher rayMarcher) {
+        this.rayMarcher = rayMarcher;
+    }
+
+    /**
+     * Sets the view depth, the level of detail and the mipmapping according to the given quality preset.
+     * @param quality the quality preset
+     */
+    public void setQuality(Quality quality) {
+        setLevelOfDetail(quality.viewDepth, quality.lodDistance, quality.stepGrowth);
+        setMipmapping(quality.mipmapping);
+    }
+
+    /**
+     * Sets whether frames should reuse what they can of the last frame rather than trace every column, see FrameCache.
+     * A view whose camera stands still over unchanged terrain then only copies its last frame, and a view that turns
+     * only traces the columns turning into view and the columns without a close enough ray in the last frame. This
+     * costs a copy of each frame. Frame reuse is off by default.
+     * @param frameReuse true if frames should be reused
+     */
+    public void setFrameReuse(boolean frameReuse) {
+        frameCache = frameReuse ? new FrameCache(width, height) : null;
+    }
+
+    /**
+     * Sets how far a reused column may be from the ray of its own column: sideways in columns and up or down in pixels.
+     * A tolerance of 0 only reuses frames that haven't changed at all. The default is .5, half a column, at which a
+     * turning view reuses the nearest column of the last frame.
+     * @param reuseTolerance the tolerance, between 0 and .5
+     */
+    public void setReuseTolerance(double reuseTolerance) {
+        if(reuseTolerance < 0 || reuseTolerance > .5)
+            throw new IllegalArgumentException("The reuse tolerance must be between 0 and .5");
+        this.reuseTolerance = reuseTolerance;
+    }
+
+    /**
+     * Returns the number of columns of the last frame that were traced rather than copied from the frame before it.
+     * Without frame reuse this is the width of the view.
+     * @return the number of traced columns
+     */
+    int getTracedColumns() {
+        return tracedColumns;
+    }
+
+    /**
+     * Sets whether distant terrain should be sampled from the mipmaps of the VoxelSpace. Each sample is taken from the
+     * level whose voxels are about as large as the distance between the samples, which reduces both the shimmering
+     * of a turning view and the memory traffic of long rays. VoxelSpaces without mipmaps are always sampled at full
+     * resolution.
+     * @param mipmapping true if the mipmaps should be sampled
+     */
+    public void setMipmapping(boolean mipmapping) {
+        this.mipmapping = mipmapping;
+    }
+
+    /**
+     * Sets how far into the distance the view reaches and how the step size of the rays grows with the distance. Rays
+     * are stepped one unit at a time up to the lodDistance. Beyond it the step size is increased by stepGrowth for each
+     * unit of distance. The change takes effect from the next frame.
+     * @param viewDepth how far into the distance the view reaches
+     * @param lodDistance the distance from which the step size starts to grow
+     * @param stepGrowth how much the step size grows for each unit of distance beyond the lodDistance
+     * @throws IllegalArgumentException if the rays of the outer columns, which are longer than the view depth, would
+     *                                  reach ProjectionTables.maxDistance or further
+     */
+    public void setLevelOfDetail(int viewDepth, double lodDistance, double stepGrowth) {
+        tables = ProjectionTables.get(width, height, fieldOfView, projectionScale, viewDepth, lodDistance,
+                stepGrowth);
+        this.viewDepth = viewDepth;
+        this.lodDistance = lodDistance;
+        this.stepGrowth = stepGrowth;
+    }
+
+    /**
+     * Sets the field of view, the width of the view on the projection plane for each column. The default is 1.2. The
+     * change takes effect from the next frame.
+     * @param fieldOfView the field of view
+     * @throws IllegalArgumentException if the rays would reach ProjectionTables.maxDistance or further
+     */
+    public void setFieldOfView(double fieldOfView) {
+        tables = ProjectionTables.get(width, height, fieldOfView, projectionScale, viewDepth, lodDistance,
+                stepGrowth);
+        this.fieldOfView = fieldOfView;
+        camera.updateAndGet(camera -> camera.withFieldOfView(fieldOfView));
+    }
+
+    /**
+     * Sets the vertical scale of the perspective projection: how many pixels a voxel one unit above the view reaches
+     * above the horizon, one unit ahead of the view. The default is 100. A view rendered at a lower resolution than it
+     * is shown at should scale this with its height, along with scaling the field of view with its width, to show the
+     * same picture. The change takes effect from the next frame.
+     * @param projectionScale the vertical scale
+     */
+    public void setProjectionScale(double projectionScale) {
+        this.projectionScale = projectionScale;
+        tables = ProjectionTables.get(width, height, fieldOfView, projectionScale, viewDepth, lodDistance,
+                stepGrowth);
+    }
+
+    /**
+     * Returns the position, rotation, field of view and resolution of the view. The camera is a snapshot, later moves
+     * of the view replace it rather than change it.
+     * @return the camera of the view
+     */
+    public Camera getCamera() {
+        return camera.get();
+    }
+
+    /**
+     * Moves the view to the position, rotation and field of view of the given camera. The camera must have the
+     * resolution of the view.
+     * @param camera the camera
+     */
+    public void setCamera(Camera camera) {
+        if(camera.getWidth() != width || camera.getHeight() != height)
+            throw new IllegalArgumentException("The camera must be " + width + " x " + height + " pixels");
+
+        if(camera.getFieldOfView() != fieldOfView) setFieldOfView(camera.getFieldOfView());
+        this.camera.set(camera);
+    }
+
     /**
      * Rotates the view with the given value of radians
      * @param motion the value in radians that the VoxelView should be rotated
      */
     public void rotate(double motion) {
-        rotationZ += motion;
+        camera.updateAndGet(camera -> camera.withRotation(camera.getRotation() + motion));
     }
 
     /**
      * Moves the view from it current position either forward (positive) or backwards (negative) based on the given
-     * value. The movement is based upon the direction of VoxelView, i.e. the rotation around the Z axis.
+     * value. The movement is based upon the direction of VoxelView, i.e. the rotation around the Z axis. The view
+     * hovers above the interpolated ground height, so it glides over the terrain rather than stepping between voxels.
      * @param move the amount that the VoxelView should be moved
      */
     public void move(double move) {
-        positionX += Math.sin(rotationZ) * move;
-        positionY += Math.cos(rotationZ) * move;
-
-        positionZ = (voxelSpace.heightMap[(((int)positionX) & (voxelSpace.width - 1)) + ((((int)positionY) & (voxelSpace.height - 1)) * voxelSpace.width)] & 0xFF) + hover;
+        /* The ground height waits for the frame lock, so it's queried once from a snapshot rather than in an update
+        that may be retried. Only the new camera is rebuilt when another thread, e.g. one rotating the view, gets in
+        between */
+        Camera snapshot = camera.get();
+        double positionX = snapshot.getPositionX() + Math.sin(snapshot.getRotation()) * move;
+        double positionY = snapshot.getPositionY() + Math.cos(snapshot.getRotation()) * move;
+        double positionZ = voxelSpace.getGroundHeight(positionX, positionY) + hover;
+
+        Camera current;
+        do {
+            current = camera.get();
+        } while(!camera.compareAndSet(current, current.withPosition(positionX, positionY, positionZ)));
     }
 }